@@ -0,0 +1,40 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * Data shared by the benchmarks.
+ */
+final class BenchmarkData {
+    private BenchmarkData() {
+    }
+
+    /**
+     * Read a UTF-8 encoded classpath resource, such as the CSV files of the tests.
+     *
+     * @param resourceName Name of the resource.
+     * @return The content of the resource.
+     * @throws IOException On trouble reading the resource.
+     */
+    static String readResource(String resourceName) throws IOException {
+        InputStream inputStream = BenchmarkData.class.getClassLoader().getResourceAsStream(resourceName);
+        if (inputStream == null) {
+            throw new IOException("Resource '" + resourceName + "' not found on classpath");
+        }
+        Reader reader = new InputStreamReader(inputStream, "UTF-8");
+        try {
+            StringBuilder content = new StringBuilder();
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                content.append(buffer, 0, read);
+            }
+            return content.toString();
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Map all advertisements of an in-memory database replicating the Biograf schema.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BiografPBCoreMapperBenchmark {
+    @Param({"1000"})
+    public int advertisements;
+
+    @Param({"1", "200"})
+    public int batchSize;
+
+    @Param({"DOM", "STREAMING"})
+    public OutputEngine outputEngine;
+
+    private Connection connection;
+    private BiografPBCoreMapper biografPBCoreMapper;
+
+    @Setup
+    public void setUp() throws SQLException {
+        connection = BiografTestDatabase.create("biograf", advertisements);
+        biografPBCoreMapper = new BiografPBCoreMapper(batchSize);
+        biografPBCoreMapper.setOutputEngine(outputEngine);
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    @Benchmark
+    public void mapAdvertisements(Blackhole blackhole) throws SQLException {
+        biografPBCoreMapper.mapSQLDataToPBCoreFiles(new BlackholeOutputSink(blackhole), connection);
+    }
+}
@@ -0,0 +1,29 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Output sink consuming files without writing them, so benchmarks measure mapping rather than file system access.
+ */
+class BlackholeOutputSink implements OutputSink {
+    private final Blackhole blackhole;
+
+    BlackholeOutputSink(Blackhole blackhole) {
+        this.blackhole = blackhole;
+    }
+
+    public void write(String name, byte[] content, String checksum) {
+        blackhole.consume(name);
+        blackhole.consume(content);
+    }
+
+    public boolean exists(String name) {
+        return false;
+    }
+
+    public void retain(String name) {
+    }
+
+    public void close() {
+    }
+}
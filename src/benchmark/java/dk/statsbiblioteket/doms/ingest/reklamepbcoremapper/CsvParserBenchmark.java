@@ -0,0 +1,49 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse TV2 CSV data of various sizes, made by repeating the rows of a test file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CsvParserBenchmark {
+    /** Number of copies of the 226 rows in the test file. */
+    @Param({"1", "10", "100"})
+    public int copies;
+
+    private String csvData;
+
+    @Setup
+    public void setUp() throws IOException {
+        String rows = BenchmarkData.readResource("199901_1.meta.utf8.csv");
+        StringBuilder data = new StringBuilder(rows.length() * copies);
+        for (int i = 0; i < copies; i++) {
+            data.append(rows);
+        }
+        csvData = data.toString();
+    }
+
+    @Benchmark
+    public List<List<String>> readCsvData() {
+        return CsvParser.readCsvData(csvData);
+    }
+}
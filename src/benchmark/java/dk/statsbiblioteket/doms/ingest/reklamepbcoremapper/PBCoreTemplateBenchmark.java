@@ -0,0 +1,92 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load, fill and serialise the TV2 PBCore template, each in isolation.
+ *
+ * Filling sets a text on every leaf element of the template, located by positional XPath expressions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PBCoreTemplateBenchmark {
+    private static final String TEMPLATE = "pbcoretv2template.xml";
+
+    @Param({"DOM", "STREAMING"})
+    public OutputEngine outputEngine;
+
+    private PBCoreTemplate pbcoreTemplate;
+    private NodeLocator[] leafLocators;
+    private PBCoreDocument filledDocument;
+
+    @Setup
+    public void setUp() {
+        pbcoreTemplate = PBCoreTemplate.getTemplate(TEMPLATE);
+        List<String> xpaths = new ArrayList<String>();
+        collectLeafXPaths(pbcoreTemplate.newDocument(), "", xpaths);
+        leafLocators = new NodeLocator[xpaths.size()];
+        for (int i = 0; i < leafLocators.length; i++) {
+            leafLocators[i] = pbcoreTemplate.compileLocator(xpaths.get(i));
+        }
+        filledDocument = fill();
+    }
+
+    @Benchmark
+    public PBCoreDocument load() {
+        // Parse the template, and compile it for the output engine by creating a document
+        PBCoreTemplate loadedTemplate = new PBCoreTemplate(TEMPLATE);
+        return loadedTemplate.createDocument(outputEngine);
+    }
+
+    @Benchmark
+    public PBCoreDocument fill() {
+        PBCoreDocument pbcoreDocument = pbcoreTemplate.createDocument(outputEngine);
+        for (int i = 0; i < leafLocators.length; i++) {
+            pbcoreDocument.setText(leafLocators[i], "Value " + i + " æøå & <>");
+        }
+        return pbcoreDocument;
+    }
+
+    @Benchmark
+    public byte[] serialise() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        filledDocument.writeTo(outputStream);
+        return outputStream.toByteArray();
+    }
+
+    private static void collectLeafXPaths(Node node, String xpath, List<String> xpaths) {
+        int position = 0;
+        boolean leaf = true;
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                leaf = false;
+                collectLeafXPaths(child, xpath + "/*[" + ++position + "]", xpaths);
+            }
+        }
+        if (leaf && !(node instanceof Document)) {
+            xpaths.add(xpath);
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Map generated data end-to-end, and check that throughput and memory use do not degrade with the size of the data.
+ *
+ * Each mapper is run with each output engine on generated data of a base size, and of a multiple of the base size:
+ * TV2 CSV files written by {@link Tv2CsvGenerator}, and in-memory databases created by {@link BiografTestDatabase}.
+ * For each run the records per second and the peak heap use are recorded. The peak heap use is the sum of the peak
+ * use of the heap memory pools during the run, less the heap in use before the run, so the generated database is not
+ * counted. Each mapper is run once on the base size before measuring, to warm up the JVM.
+ *
+ * The results are written as JSON. The check fails if a mapper maps the larger data at less than
+ * {@link #MIN_THROUGHPUT_RATIO} of its throughput on the base size, if its peak heap use grows by more than a factor
+ * {@link #MAX_HEAP_RATIO}, or if it does not reject exactly the rows generated to be invalid. Comparing each mapper
+ * with itself on the same machine, rather than with fixed numbers, keeps the check independent of the machine.
+ *
+ * Usage: ThroughputRegression &lt;tv2rows&gt; &lt;advertisements&gt; &lt;scale&gt; &lt;resultfile&gt;
+ */
+public final class ThroughputRegression {
+    /** Smallest throughput on the larger data, relative to the throughput on the base size. */
+    static final double MIN_THROUGHPUT_RATIO = 0.5;
+
+    /** Largest peak heap use on the larger data, relative to the peak heap use on the base size. */
+    static final double MAX_HEAP_RATIO = 3;
+
+    private static final String TV2 = "tv2";
+    private static final String BIOGRAF = "biograf";
+
+    /** The result of mapping one data set. */
+    private static class Run {
+        String mapper;
+        OutputEngine outputEngine;
+        int size;
+        long records;
+        long failures;
+        long expectedFailures;
+        double elapsedSeconds;
+        long peakHeapBytes;
+        long outputBytes;
+
+        double getRecordsPerSecond() {
+            return records / Math.max(elapsedSeconds, 1e-9);
+        }
+    }
+
+    /** Output sink counting the bytes written, so the check measures mapping rather than file system access. */
+    private static class CountingOutputSink implements OutputSink {
+        private long bytes;
+
+        public synchronized void write(String name, byte[] content, String checksum) {
+            bytes += content.length;
+        }
+
+        public boolean exists(String name) {
+            return false;
+        }
+
+        public void retain(String name) {
+        }
+
+        public void close() {
+        }
+    }
+
+    private ThroughputRegression() {
+    }
+
+    /**
+     * Run the check.
+     *
+     * @param args The base number of TV2 rows, the base number of Biograf advertisements, the factor to multiply
+     * the base sizes with, and the file to write the results to.
+     * @throws Exception On trouble generating or mapping data, or writing the results.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 4) {
+            System.err.println("Usage: ThroughputRegression <tv2rows> <advertisements> <scale> <resultfile>");
+            System.exit(1);
+        }
+        int tv2Rows = Integer.parseInt(args[0]);
+        int advertisements = Integer.parseInt(args[1]);
+        int scale = Integer.parseInt(args[2]);
+        File resultFile = new File(args[3]);
+
+        List<Run> runs = new ArrayList<Run>();
+        List<String> regressions = new ArrayList<String>();
+        for (OutputEngine outputEngine : OutputEngine.values()) {
+            mapTv2(outputEngine, tv2Rows);
+            Run base = mapTv2(outputEngine, tv2Rows);
+            Run scaled = mapTv2(outputEngine, tv2Rows * scale);
+            check(base, scaled, runs, regressions);
+        }
+        for (OutputEngine outputEngine : OutputEngine.values()) {
+            mapBiograf(outputEngine, advertisements);
+            Run base = mapBiograf(outputEngine, advertisements);
+            Run scaled = mapBiograf(outputEngine, advertisements * scale);
+            check(base, scaled, runs, regressions);
+        }
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(resultFile), "UTF-8");
+        try {
+            writeJson(runs, regressions, writer);
+        } finally {
+            writer.close();
+        }
+        for (String regression : regressions) {
+            System.err.println("Regression: " + regression);
+        }
+        if (!regressions.isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    private static Run mapTv2(OutputEngine outputEngine, int rows) throws IOException {
+        File csvFile = File.createTempFile("tv2throughput", ".csv");
+        try {
+            Run run = new Run();
+            run.expectedFailures = Tv2CsvGenerator.write(csvFile, rows, rows);
+            Tv2PBCoreMapper tv2PBCoreMapper = new Tv2PBCoreMapper();
+            tv2PBCoreMapper.setOutputEngine(outputEngine);
+            CountingOutputSink outputSink = new CountingOutputSink();
+            long baseline = startMeasuring();
+            long start = System.nanoTime();
+            PrintStream err = silenceErrors();
+            try {
+                tv2PBCoreMapper.mapCsvDataToPBCoreFiles(csvFile, outputSink);
+            } finally {
+                System.setErr(err);
+            }
+            stopMeasuring(run, TV2, outputEngine, rows, tv2PBCoreMapper.getMetrics(), start, baseline);
+            run.outputBytes = outputSink.bytes;
+            report(run);
+            return run;
+        } finally {
+            csvFile.delete();
+        }
+    }
+
+    private static Run mapBiograf(OutputEngine outputEngine, int advertisements) throws SQLException {
+        Connection connection = BiografTestDatabase.create("throughput", advertisements);
+        try {
+            Run run = new Run();
+            BiografPBCoreMapper biografPBCoreMapper = new BiografPBCoreMapper();
+            biografPBCoreMapper.setOutputEngine(outputEngine);
+            CountingOutputSink outputSink = new CountingOutputSink();
+            long baseline = startMeasuring();
+            long start = System.nanoTime();
+            PrintStream err = silenceErrors();
+            try {
+                biografPBCoreMapper.mapSQLDataToPBCoreFiles(outputSink, connection);
+            } finally {
+                System.setErr(err);
+            }
+            stopMeasuring(run, BIOGRAF, outputEngine, advertisements, biografPBCoreMapper.getMetrics(), start,
+                          baseline);
+            run.outputBytes = outputSink.bytes;
+            report(run);
+            return run;
+        } finally {
+            // Closing the last connection drops the in-memory database
+            connection.close();
+        }
+    }
+
+    /**
+     * Failures are counted by the metrics, and reporting each of them on standard error would dominate the runs
+     * on data with invalid rows.
+     */
+    private static PrintStream silenceErrors() {
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        return err;
+    }
+
+    private static long startMeasuring() {
+        System.gc();
+        System.gc();
+        long baseline = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+        return baseline;
+    }
+
+    private static void stopMeasuring(Run run, String mapper, OutputEngine outputEngine, int size,
+                                      MappingMetrics metrics, long start, long baseline) {
+        run.elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        run.mapper = mapper;
+        run.outputEngine = outputEngine;
+        run.size = size;
+        run.records = metrics.getRecords();
+        run.failures = metrics.getFailures();
+        run.peakHeapBytes = Math.max(peak - baseline, 0);
+    }
+
+    private static void report(Run run) {
+        System.out.println(String.format(Locale.ROOT, "%-8s %-10s %9d records %6d failures %8.2f s %10.0f records/s"
+                                                 + " %7.1f MB peak heap", run.mapper, run.outputEngine, run.records,
+                                         run.failures, run.elapsedSeconds, run.getRecordsPerSecond(),
+                                         run.peakHeapBytes / 1e6));
+    }
+
+    private static void check(Run base, Run scaled, List<Run> runs, List<String> regressions) {
+        runs.add(base);
+        runs.add(scaled);
+        String name = base.mapper + " " + base.outputEngine;
+        for (Run run : new Run[]{base, scaled}) {
+            if (run.failures != run.expectedFailures || run.records + run.failures != run.size) {
+                regressions.add(String.format(Locale.ROOT, "%s mapped %d and rejected %d of %d records, expected %d"
+                                                      + " rejected", name, run.records, run.failures, run.size,
+                                              run.expectedFailures));
+            }
+        }
+        double throughputRatio = scaled.getRecordsPerSecond() / base.getRecordsPerSecond();
+        if (throughputRatio < MIN_THROUGHPUT_RATIO) {
+            regressions.add(String.format(Locale.ROOT, "%s throughput dropped to %.0f records/s on %d records, from"
+                                                  + " %.0f records/s on %d records", name,
+                                          scaled.getRecordsPerSecond(), scaled.size, base.getRecordsPerSecond(),
+                                          base.size));
+        }
+        if (scaled.peakHeapBytes > MAX_HEAP_RATIO * Math.max(base.peakHeapBytes, 1)) {
+            regressions.add(String.format(Locale.ROOT, "%s peak heap grew to %.1f MB on %d records, from %.1f MB on"
+                                                  + " %d records", name, scaled.peakHeapBytes / 1e6, scaled.size,
+                                          base.peakHeapBytes / 1e6, base.size));
+        }
+    }
+
+    private static void writeJson(List<Run> runs, List<String> regressions, Writer writer) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"runs\": [");
+        for (int i = 0; i < runs.size(); i++) {
+            Run run = runs.get(i);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    {\n");
+            json.append("      \"mapper\": \"").append(run.mapper).append("\",\n");
+            json.append("      \"outputEngine\": \"").append(run.outputEngine).append("\",\n");
+            json.append("      \"size\": ").append(run.size).append(",\n");
+            json.append("      \"records\": ").append(run.records).append(",\n");
+            json.append("      \"failures\": ").append(run.failures).append(",\n");
+            json.append("      \"elapsedSeconds\": ").append(format(run.elapsedSeconds)).append(",\n");
+            json.append("      \"recordsPerSecond\": ").append(format(run.getRecordsPerSecond())).append(",\n");
+            json.append("      \"peakHeapBytes\": ").append(run.peakHeapBytes).append(",\n");
+            json.append("      \"outputBytes\": ").append(run.outputBytes).append("\n");
+            json.append("    }");
+        }
+        json.append(runs.isEmpty() ? "],\n" : "\n  ],\n");
+        json.append("  \"regressions\": [");
+        for (int i = 0; i < regressions.size(); i++) {
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    \"").append(regressions.get(i).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        json.append(regressions.isEmpty() ? "]\n" : "\n  ]\n");
+        json.append("}\n");
+        writer.write(json.toString());
+        writer.flush();
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+}
@@ -0,0 +1,156 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * Generate TV2 CSV files of any size, in the form of the files delivered by TV2.
+ *
+ * The rows are spread over the months from 1995 to 2010, with unique identifiers. They include the cases seen in
+ * the delivered files: cells quoted for commas, quotes and line breaks, months without leading zeros, empty dates
+ * that fall back to the month, dates of the 2000s without leading zeros, and leap days. One row in
+ * {@link #INVALID_DATE_INTERVAL} has a date that does not exist, and is rejected by the mapper.
+ *
+ * Usage: Tv2CsvGenerator &lt;csvfile&gt; &lt;rows&gt; [seed]
+ */
+public final class Tv2CsvGenerator {
+    /** Every row with a number divisible by this has an invalid date. */
+    static final int INVALID_DATE_INTERVAL = 1000;
+
+    private static final int FIRST_YEAR = 1995;
+    private static final int MONTHS = 16 * 12;
+
+    private static final String[][] CATEGORIES = {
+            {"Befordringsmidler etc.", "Personbiler"},
+            {"Befordringsmidler etc.", "Rejser, ferie"},
+            {"Fødevarer", "Mejeriprodukter"},
+            {"Fødevarer", "Kaffe, te, kakao"},
+            {"Husholdning", "Vaske- og rengøringsmidler"},
+            {"Finansiering", "Banker, sparekasser"},
+            {"Medier", "Aviser, blade"}};
+    private static final String[] COMPANIES = {
+            "Andersen Motors A/S", "Citroen Danmark A/S", "Arla Foods", "Merrild Kaffe", "Unilever Danmark",
+            "Den Danske Bank", "Berlingske Tidende", "Lego System A/S"};
+    private static final String[] BUREAUS = {
+            "Wibroe, Duckert & Partners", "Grey København A/S", "Euro RSCG", "D'ARCY MASIUS BENTON & B",
+            "OGILVY & MATHER REKLAMEB", "Bates, Backer, Spielvogel"};
+    private static final String[] PRODUCERS = {
+            "Wibroe, Duckert & Partners Producti", "Hundred Percent Filmproduction", "Atlas Film",
+            "Nordisk Film Commercial", "SONNE FILM & TV", "PARTNERS'"};
+    private static final String[] LANGUAGES = {"Dansk", "Dansk", "Dansk", "Versioneret", "Udenlandsk", "Ukendt"};
+    private static final String[] TITLES = {
+            "Nytårskur - åbent hus i weekenden", "Mor, jeg skal tisse testen", "Strand og mågeklat",
+            "\"Den nye\" - premiere i weekenden", "Åbent Hus 15. & 16. januar", "Sommer, sol og \"is\"",
+            "Elektrisk foldetag <Millenium>", "Kampagne\nanden linje"};
+    private static final int[] DURATIONS = {10, 15, 20, 25, 30, 35, 40, 45, 60, 90};
+
+    private Tv2CsvGenerator() {
+    }
+
+    /**
+     * Generate a CSV file.
+     *
+     * @param args The CSV file, the number of rows, and optionally the seed of the generated values.
+     * @throws IOException On trouble writing the file.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: Tv2CsvGenerator <csvfile> <rows> [seed]");
+            System.exit(1);
+        }
+        int invalid = write(new File(args[0]), Integer.parseInt(args[1]),
+                            args.length > 2 ? Long.parseLong(args[2]) : 0);
+        System.err.println("Wrote " + args[1] + " rows, of which " + invalid + " have an invalid date");
+    }
+
+    /**
+     * Write a CSV file. The content only depends on the number of rows and the seed.
+     *
+     * @param csvFile The file to write. An existing file is replaced.
+     * @param rows The number of rows.
+     * @param seed The seed of the generated values.
+     * @return The number of rows with an invalid date.
+     * @throws IOException On trouble writing the file.
+     */
+    static int write(File csvFile, int rows, long seed) throws IOException {
+        Random random = new Random(seed);
+        int rowsPerMonth = (rows + MONTHS - 1) / MONTHS;
+        int invalid = 0;
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csvFile), "UTF-8"), 64 * 1024);
+        try {
+            for (int row = 1; row <= rows; row++) {
+                int month = (row - 1) / Math.max(rowsPerMonth, 1);
+                int year = FIRST_YEAR + month / 12;
+                int monthOfYear = month % 12 + 1;
+                String[] category = CATEGORIES[random.nextInt(CATEGORIES.length)];
+
+                StringBuilder line = new StringBuilder(256);
+                // Some deliveries leave out the leading zero of the month
+                line.append(year).append('-').append(random.nextInt(10) == 0 || monthOfYear >= 10
+                                                     ? Integer.toString(monthOfYear) : "0" + monthOfYear);
+                appendCell(line, category[0]);
+                appendCell(line, category[1]);
+                appendCell(line, COMPANIES[random.nextInt(COMPANIES.length)].toUpperCase());
+                appendCell(line, Integer.toString(DURATIONS[random.nextInt(DURATIONS.length)]));
+                appendCell(line, TITLES[random.nextInt(TITLES.length)] + " " + row);
+                String date;
+                if (row % INVALID_DATE_INTERVAL == 0) {
+                    date = Integer.toString((year % 100 * 100 + 2) * 100 + 30);
+                    invalid++;
+                } else if (random.nextInt(5) == 0) {
+                    date = "";
+                } else {
+                    int days = daysInMonth(year, monthOfYear);
+                    // The last day of the month, including leap days, is the most likely to be mishandled
+                    int day = random.nextInt(4) == 0 ? days : random.nextInt(days) + 1;
+                    date = Integer.toString((year % 100 * 100 + monthOfYear) * 100 + day);
+                }
+                appendCell(line, date);
+                appendCell(line, COMPANIES[random.nextInt(COMPANIES.length)]);
+                appendCell(line, BUREAUS[random.nextInt(BUREAUS.length)]);
+                appendCell(line, PRODUCERS[random.nextInt(PRODUCERS.length)]);
+                appendCell(line, LANGUAGES[random.nextInt(LANGUAGES.length)]);
+                appendCell(line, "tv2rekl" + year + (monthOfYear < 10 ? "0" : "") + monthOfYear + "_"
+                        + pad((row - 1) % Math.max(rowsPerMonth, 1) + 1));
+                line.append('\n');
+                writer.write(line.toString());
+            }
+        } finally {
+            writer.close();
+        }
+        return invalid;
+    }
+
+    private static void appendCell(StringBuilder line, String value) {
+        line.append(',');
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            line.append(value);
+            return;
+        }
+        line.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+
+    private static String pad(int number) {
+        String digits = Integer.toString(number);
+        return digits.length() >= 4 ? digits : "0000".substring(digits.length()) + digits;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Map a single TV2 row end-to-end, from reading the CSV file to the serialised PBCore document.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Tv2PBCoreMapperBenchmark {
+    @Param({"DOM", "STREAMING"})
+    public OutputEngine outputEngine;
+
+    private Tv2PBCoreMapper tv2PBCoreMapper;
+    private File csvFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        tv2PBCoreMapper = new Tv2PBCoreMapper();
+        tv2PBCoreMapper.setOutputEngine(outputEngine);
+        String rows = BenchmarkData.readResource("199901_1.meta.utf8.csv");
+        csvFile = File.createTempFile("tv2row", ".csv");
+        OutputStream outputStream = new FileOutputStream(csvFile);
+        try {
+            outputStream.write(rows.substring(0, rows.indexOf('\n') + 1).getBytes("UTF-8"));
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        csvFile.delete();
+    }
+
+    @Benchmark
+    public void mapRow(Blackhole blackhole) throws IOException {
+        tv2PBCoreMapper.mapCsvDataToPBCoreFiles(csvFile, new BlackholeOutputSink(blackhole));
+    }
+}
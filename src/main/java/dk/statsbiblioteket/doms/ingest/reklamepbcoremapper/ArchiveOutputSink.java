@@ -0,0 +1,185 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Write all files into one archive, written sequentially.
+ *
+ * The archive is a tar file, optionally gzip compressed, or a zip file with compressed entries. Tar entries use the
+ * ustar format, with a pax extended header for names longer than 100 bytes. Files are written in the order they are
+ * received; from several threads, one file at a time.
+ */
+public class ArchiveOutputSink implements OutputSink {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int BLOCK_SIZE = 512;
+    private static final int NAME_LENGTH = 100;
+
+    /** Supported archive formats. */
+    public enum Format {
+        TAR, TAR_GZIP, ZIP
+    }
+
+    private final Format format;
+    private final OutputStream outputStream;
+    private final ZipOutputStream zipOutputStream;
+    private final long modificationTime = System.currentTimeMillis();
+    private final byte[] header = new byte[BLOCK_SIZE];
+
+    /**
+     * Initialise a sink writing an archive to a stream.
+     *
+     * @param outputStream The stream to write to. It is closed when the sink is closed.
+     * @param format The archive format.
+     * @throws IOException On trouble starting the archive.
+     */
+    public ArchiveOutputSink(OutputStream outputStream, Format format) throws IOException {
+        this.format = format;
+        switch (format) {
+            case ZIP:
+                this.zipOutputStream = new ZipOutputStream(outputStream);
+                this.outputStream = zipOutputStream;
+                break;
+            case TAR_GZIP:
+                this.zipOutputStream = null;
+                this.outputStream = new GZIPOutputStream(outputStream, BUFFER_SIZE);
+                break;
+            default:
+                this.zipOutputStream = null;
+                this.outputStream = outputStream;
+                break;
+        }
+    }
+
+    /**
+     * Create a sink writing an archive to a file. The format is given by the file name, which must end in ".tar",
+     * ".tar.gz", ".tgz" or ".zip".
+     *
+     * @param file The archive file.
+     * @return The sink.
+     * @throws IOException On trouble creating the file.
+     * @throws IllegalArgumentException If the file name has none of the supported extensions.
+     */
+    public static ArchiveOutputSink create(File file) throws IOException {
+        String name = file.getName().toLowerCase();
+        Format format;
+        if (name.endsWith(".tar")) {
+            format = Format.TAR;
+        } else if (name.endsWith(".tar.gz") || name.endsWith(".tgz")) {
+            format = Format.TAR_GZIP;
+        } else if (name.endsWith(".zip")) {
+            format = Format.ZIP;
+        } else {
+            throw new IllegalArgumentException("Unknown archive format of " + file
+                                                       + ", expected .tar, .tar.gz, .tgz or .zip");
+        }
+        return new ArchiveOutputSink(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE), format);
+    }
+
+    public synchronized void write(String name, byte[] content, String checksum) throws IOException {
+        if (format == Format.ZIP) {
+            ZipEntry zipEntry = new ZipEntry(name);
+            zipEntry.setTime(modificationTime);
+            zipOutputStream.putNextEntry(zipEntry);
+            zipOutputStream.write(content);
+            zipOutputStream.closeEntry();
+            return;
+        }
+        byte[] nameBytes = utf8(name);
+        if (nameBytes.length > NAME_LENGTH) {
+            // Store the full name in a pax extended header preceding the entry, the entry itself gets a truncated name
+            writeTarEntry(utf8("PaxHeaders/entry"), 'x', paxRecord("path", name));
+        }
+        writeTarEntry(nameBytes, '0', content);
+    }
+
+    /**
+     * An archive is new on every run, so no files are present from previous runs.
+     *
+     * @return false.
+     */
+    public boolean exists(String name) {
+        return false;
+    }
+
+    public void retain(String name) {
+    }
+
+    public synchronized void close() throws IOException {
+        if (format == Format.ZIP) {
+            zipOutputStream.close();
+            return;
+        }
+        // A tar archive ends with two empty blocks
+        outputStream.write(new byte[BLOCK_SIZE * 2]);
+        outputStream.close();
+    }
+
+    private void writeTarEntry(byte[] nameBytes, char type, byte[] content) throws IOException {
+        Arrays.fill(header, (byte) 0);
+        System.arraycopy(nameBytes, 0, header, 0, Math.min(nameBytes.length, NAME_LENGTH));
+        putOctal(0644, 100, 8);
+        putOctal(0, 108, 8);
+        putOctal(0, 116, 8);
+        putOctal(content.length, 124, 12);
+        putOctal(modificationTime / 1000, 136, 12);
+        header[156] = (byte) type;
+        System.arraycopy(utf8("ustar"), 0, header, 257, 5);
+        header[263] = '0';
+        header[264] = '0';
+        // The checksum is computed with the checksum field filled with spaces
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        int checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xFF;
+        }
+        putOctal(checksum, 148, 7);
+        outputStream.write(header);
+        outputStream.write(content);
+        int padding = (BLOCK_SIZE - content.length % BLOCK_SIZE) % BLOCK_SIZE;
+        if (padding > 0) {
+            outputStream.write(new byte[padding]);
+        }
+    }
+
+    /**
+     * Write a number as zero padded octal digits followed by a NUL into a field of the header.
+     */
+    private void putOctal(long value, int offset, int length) {
+        String octal = Long.toOctalString(value);
+        int digits = length - 1;
+        for (int i = 0; i < digits; i++) {
+            int index = octal.length() - digits + i;
+            header[offset + i] = (byte) (index < 0 ? '0' : octal.charAt(index));
+        }
+        header[offset + digits] = 0;
+    }
+
+    /**
+     * Build a pax extended header record "length key=value\n", where length is the length of the whole record.
+     */
+    private static byte[] paxRecord(String key, String value) {
+        int length = utf8(" " + key + "=" + value + "\n").length;
+        int digits = Integer.toString(length).length();
+        if (Integer.toString(length + digits).length() > digits) {
+            digits++;
+        }
+        return utf8((length + digits) + " " + key + "=" + value + "\n");
+    }
+
+    private static byte[] utf8(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not supported", e);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The small lookup tables of the Biograf database, loaded into memory once per run.
+ *
+ * With the lookup tables in memory, the queries per advertisement only read the link tables, and the rows of the
+ * lookup tables are not joined and sent again for every advertisement. Lookups of unknown IDs return null, like an
+ * inner join would leave out the row.
+ *
+ * Instances are not modified after loading, and are safe to share between threads.
+ */
+final class BiografDimensions {
+    private static final String SQL_QUERY_SUBJECT_KEYWORD = "SELECT "
+            + "subjectKeywordID,"
+            + "word "
+            + "FROM SubjectKeyword";
+
+    private static final String SQL_QUERY_SUBJECT_REKLAMEFILM = "SELECT "
+            + "child.subjectReklameID,"
+            + "child.word as subjectChild,"
+            + "parent.word as subjectParent "
+            + "FROM SubjectReklamefilm child, SubjectReklamefilm parent "
+            + "WHERE child.parentID = parent.subjectReklameID";
+
+    private static final String SQL_QUERY_DECADE = "SELECT "
+            + "decadeID,"
+            + "decade "
+            + "FROM Decade";
+
+    private static final String SQL_QUERY_LANGUAGE = "SELECT "
+            + "languageID,"
+            + "abbreviation "
+            + "FROM Language";
+
+    private static final String SQL_QUERY_CREATOR_ROLE = "SELECT "
+            + "creatorRoleID,"
+            + "description "
+            + "FROM CreatorRole";
+
+    private static final String SQL_QUERY_CONTRIBUTOR_ROLE = "SELECT "
+            + "contributorRoleID,"
+            + "description "
+            + "FROM ContributorRole";
+
+    private final Map<Integer, String> subjectKeywords;
+    private final Map<Integer, String[]> subjectsReklamefilm;
+    private final Map<Integer, String> decades;
+    private final Map<Integer, String> languages;
+    private final Map<Integer, String> creatorRoles;
+    private final Map<Integer, String> contributorRoles;
+
+    private BiografDimensions(Map<Integer, String> subjectKeywords, Map<Integer, String[]> subjectsReklamefilm,
+                              Map<Integer, String> decades, Map<Integer, String> languages,
+                              Map<Integer, String> creatorRoles, Map<Integer, String> contributorRoles) {
+        this.subjectKeywords = subjectKeywords;
+        this.subjectsReklamefilm = subjectsReklamefilm;
+        this.decades = decades;
+        this.languages = languages;
+        this.creatorRoles = creatorRoles;
+        this.contributorRoles = contributorRoles;
+    }
+
+    /**
+     * Load the lookup tables.
+     *
+     * @param c The connection to query.
+     * @return The lookup tables.
+     * @throws SQLException On trouble querying the database.
+     */
+    static BiografDimensions load(Connection c) throws SQLException {
+        Map<Integer, String[]> subjectsReklamefilm = new HashMap<Integer, String[]>();
+        PreparedStatement statement = c.prepareStatement(SQL_QUERY_SUBJECT_REKLAMEFILM);
+        ResultSet resultSet = statement.executeQuery();
+        while (resultSet.next()) {
+            subjectsReklamefilm.put(resultSet.getInt(1), new String[]{resultSet.getString(2), resultSet.getString(3)});
+        }
+        statement.close();
+        return new BiografDimensions(loadTable(SQL_QUERY_SUBJECT_KEYWORD, c), subjectsReklamefilm,
+                                     loadTable(SQL_QUERY_DECADE, c), loadTable(SQL_QUERY_LANGUAGE, c),
+                                     loadTable(SQL_QUERY_CREATOR_ROLE, c), loadTable(SQL_QUERY_CONTRIBUTOR_ROLE, c));
+    }
+
+    private static Map<Integer, String> loadTable(String query, Connection c) throws SQLException {
+        Map<Integer, String> table = new HashMap<Integer, String>();
+        PreparedStatement statement = c.prepareStatement(query);
+        ResultSet resultSet = statement.executeQuery();
+        while (resultSet.next()) {
+            table.put(resultSet.getInt(1), resultSet.getString(2));
+        }
+        statement.close();
+        return table;
+    }
+
+    String getSubjectKeyword(int subjectKeywordID) {
+        return subjectKeywords.get(subjectKeywordID);
+    }
+
+    /**
+     * Get a reklamefilm subject.
+     *
+     * @param subjectReklameID The ID of the subject.
+     * @return The subject followed by its parent subject.
+     */
+    String[] getSubjectReklamefilm(int subjectReklameID) {
+        return subjectsReklamefilm.get(subjectReklameID);
+    }
+
+    String getDecade(int decadeID) {
+        return decades.get(decadeID);
+    }
+
+    String getLanguage(int languageID) {
+        return languages.get(languageID);
+    }
+
+    String getCreatorRole(int creatorRoleID) {
+        return creatorRoles.get(creatorRoleID);
+    }
+
+    String getContributorRole(int contributorRoleID) {
+        return contributorRoles.get(contributorRoleID);
+    }
+}
@@ -1,41 +1,57 @@
 package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-
-import dk.statsbiblioteket.util.xml.DOM;
-import dk.statsbiblioteket.util.xml.XPathSelector;
-
-import javax.xml.transform.TransformerException;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.URLEncoder;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.TimeZone;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Map all biografreklamefilm data to PBCore.
+ *
+ * Given a pool of several connections, the AdID space is split into ranges that are exported in parallel, each on
+ * its own connection.
+ *
+ * With more than one thread, an export is a pipeline: the reading threads read advertisements, a pool of worker
+ * threads maps them, and a writer thread writes the PBCore files in the order they were read. The pipeline is kept
+ * for the whole export, so the queries of the next page, batch or range overlap mapping and writing the ones before.
+ * The queue between the stages is bounded, so reading waits when mapping or writing falls behind.
+ *
+ * Given a page size, advertisements are read in pages of AdIDs in ascending order, each page with a query of its own
+ * starting after the last AdID of the page before, so no cursor is kept open for long. Given a checkpoint, the last
+ * AdID of each page is saved when the writer has written the page, and an interrupted export resumes after it.
+ *
+ * The advertisements can also be extracted to a local snapshot, with the values of their child relations, and mapped
+ * from the snapshot later without querying the database.
  */
 public class BiografPBCoreMapper {
-    private static final SimpleDateFormat OUTPUT_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-ddZ");
-    private static final SimpleDateFormat DURATION_FORMAT = new SimpleDateFormat("HH:mm:ss");
-    static {
-        DURATION_FORMAT.setTimeZone(TimeZone.getTimeZone("UTC"));
-    }
-    private static final XPathSelector XPATH_SELECTOR = DOM
-            .createXPathSelector("p", "http://www.pbcore.org/PBCore/PBCoreNamespace.html");
+    /** Number of AdID ranges per connection, to even out ranges with few advertisements. */
+    private static final int RANGES_PER_CONNECTION = 4;
+
+    /** Number of advertisements waiting to be written per worker thread. */
+    private static final int RECORDS_PER_THREAD = 16;
+
+    /** Marks the end of the advertisements queued for the writer thread. */
+    private static final MappedRecord END = new MappedRecord(null, null, null);
 
     private static final String SQL_QUERY_AD = "SELECT "
             + "ad.AdID,"                                                                                             // 1
@@ -59,43 +75,94 @@ public class BiografPBCoreMapper {
             + "ad.fileName,"                                                                                         //19
             + "ad.covSpatial "                                                                                       //20
             + "FROM Advertisement ad "
-            + "WHERE ad.fileName != NULL";
+            + "WHERE ad.fileName IS NOT NULL";
+
+    /** Restriction to advertisements modified after a given time, added to the advertisement queries. */
+    private static final String SQL_MODIFIED_SINCE = "  AND ad.lastModified > ?";
+
+    /** Restriction to a range of AdIDs, added to {@link #SQL_QUERY_AD}. */
+    private static final String SQL_AD_ID_RANGE = "  AND ad.AdID >= ?"
+            + "  AND ad.AdID < ?";
+
+    /** Restriction to AdIDs after a given AdID, for reading a page of advertisements. */
+    private static final String SQL_AD_ID_AFTER = "  AND ad.AdID > ?";
+
+    /** Restriction to AdIDs before a given AdID, for reading a page of advertisements in a range. */
+    private static final String SQL_AD_ID_BEFORE = "  AND ad.AdID < ?";
+
+    private static final String SQL_ORDER_BY_AD_ID = " ORDER BY ad.AdID";
+
+    /** Restriction to a list of AdIDs, added to {@link #SQL_QUERY_AD} with a placeholder for each AdID. */
+    private static final String SQL_AD_ID_IN = "  AND ad.AdID IN (%s)";
+
+    private static final String SQL_QUERY_AD_ID_RANGE = "SELECT "
+            + "min(ad.AdID),"
+            + "max(ad.AdID) "
+            + "FROM Advertisement ad "
+            + "WHERE ad.fileName IS NOT NULL";
+
+    /** Advertisements without a file, whose PBCore files should no longer be published. */
+    private static final String SQL_QUERY_RETRACTED = "SELECT "
+            + "ad.AdID,"
+            + "ad.lastModified "
+            + "FROM Advertisement ad "
+            + "WHERE ad.fileName IS NULL";
+
+    /** Number of columns in {@link #SQL_QUERY_AD}. */
+    private static final int SQL_QUERY_AD_COLUMNS = 20;
+
+    // The child queries below fetch the rows for a batch of AdIDs at a time, with "%s" replaced by the placeholders
+    // of the AdIDs. The first column is always the AdID. They only read the link tables, and the IDs they return
+    // are looked up in the lookup tables loaded by BiografDimensions.
 
     private static final String SQL_QUERY_SUBJECT_KEYWORD = "SELECT "
-            + "subject.word "
-            + "FROM SubjectKeyword subject, AdvSubjectKeyword "
-            + "WHERE AdvSubjectKeyword.AdID=?"
-            + "  AND AdvSubjectKeyword.subjectKeywordID = subject.subjectKeywordID";
+            + "AdID,"
+            + "subjectKeywordID "
+            + "FROM AdvSubjectKeyword "
+            + "WHERE AdID IN (%s) "
+            + "ORDER BY AdID";
 
     private static final String SQL_QUERY_SUBJECT_REKLAMEFILM = "SELECT "
-            + "child.word as subjectChild,"
-            + "parent.word as subjectParent "
-            + "FROM SubjectReklamefilm child, SubjectReklamefilm parent, AdvSubjectReklamefilm "
-            + "WHERE AdvSubjectReklamefilm.AdID=?"
-            + "  AND AdvSubjectReklamefilm.subjectReklameID = child.subjectReklameID"
-            + "  AND child.parentID = parent.subjectReklameID";
+            + "AdID,"
+            + "subjectReklameID "
+            + "FROM AdvSubjectReklamefilm "
+            + "WHERE AdID IN (%s) "
+            + "ORDER BY AdID";
 
     private static final String SQL_QUERY_DECADE = "SELECT "
-            + "decade.decade "
-            + "FROM Decade decade, AdvDecade "
-            + "WHERE AdvDecade.AdID=?"
-            + "  AND AdvDecade.decadeID = decade.decadeID";
+            + "AdID,"
+            + "decadeID "
+            + "FROM AdvDecade "
+            + "WHERE AdID IN (%s) "
+            + "ORDER BY AdID";
 
     private static final String SQL_QUERY_LANGUAGE = "SELECT "
-            + "lan.abbreviation "
-            + "FROM Language lan, AdvLanguage "
-            + "WHERE AdvLanguage.AdID=? "
-            + "AND lan.languageID=AdvLanguage.languageID";
+            + "AdID,"
+            + "languageID "
+            + "FROM AdvLanguage "
+            + "WHERE AdID IN (%s) "
+            + "ORDER BY AdID";
 
-    private static final String SQL_QUERY_CONTRIBUTOR = "SELECT conrole.description, con.name FROM Contributor con, ContributorRole conrole, AdvContributor "
+    private static final String SQL_QUERY_CONTRIBUTOR = "SELECT AdvContributor.AdID, con.contributorRoleID, con.name "
+            + "FROM Contributor con, AdvContributor "
             + "WHERE con.contributorID=AdvContributor.contributorID "
-            + "AND conrole.contributorRoleID = con.contributorRoleID "
-            + "AND AdvContributor.AdID=?";
+            + "AND AdvContributor.AdID IN (%s) "
+            + "ORDER BY AdvContributor.AdID";
 
-    private static final String SQL_QUERY_CREATOR = "SELECT crerole.description, cre.name FROM Creator cre, CreatorRole crerole, AdvCreator "
+    private static final String SQL_QUERY_CREATOR = "SELECT AdvCreator.AdID, cre.creatorRoleID, cre.name "
+            + "FROM Creator cre, AdvCreator "
             + "WHERE cre.creatorID=AdvCreator.creatorID "
-            + "AND crerole.creatorRoleID = cre.creatorRoleID "
-            + "AND AdvCreator.AdID=?";
+            + "AND AdvCreator.AdID IN (%s) "
+            + "ORDER BY AdvCreator.AdID";
+
+    /** Default number of advertisements to fetch child rows for in one query. */
+    public static final int DEFAULT_BATCH_SIZE = 200;
+
+    /** Default number of advertisement rows the driver is asked to fetch from the database at a time. */
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+
+    /** Default number of advertisements read per query when exporting with a checkpoint and no page size is set. */
+    public static final int DEFAULT_PAGE_SIZE = 10000;
 
     //TODO: What to do with audit data (registrant etc.) 13,14,15,16
 
@@ -106,6 +173,8 @@ public class BiografPBCoreMapper {
         final String xpath;
         final Type type;
         boolean parent;
+        NodeLocator locator;
+        NodeLocator removeLocator;
 
         private MappingTuple(int resultindex, String xpath, Type type, boolean parent) {
             this.resultindex = resultindex;
@@ -115,6 +184,27 @@ public class BiografPBCoreMapper {
         }
     }
 
+    private static class MappedRecord {
+        final BiografRecord record;
+        final Future<byte[]> pbcore;
+        /** For the marker queued after a page: the last AdID of the page, to save in the resume checkpoint. */
+        final Integer checkpointAdID;
+
+        private MappedRecord(BiografRecord record, Future<byte[]> pbcore, Integer checkpointAdID) {
+            this.record = record;
+            this.pbcore = pbcore;
+            this.checkpointAdID = checkpointAdID;
+        }
+    }
+
+    /** The advertisements read by one advertisement query, such as a page. */
+    private static class Page {
+        int advertisements;
+        Integer lastAdID;
+    }
+
+    private final PBCoreTemplate pbcoreTemplate = PBCoreTemplate.getTemplate("pbcorebiograftemplate.xml");
+
     private final List<MappingTuple> pbcoreBiografTemplateMappingTuples = new ArrayList<MappingTuple>(Arrays.asList(
             new MappingTuple(1, "/p:PBCoreDescriptionDocument/p:pbcoreIdentifier[1]/p:identifier",
                              MappingTuple.Type.INT, true),
@@ -151,245 +241,1098 @@ public class BiografPBCoreMapper {
             new MappingTuple(20, "/p:PBCoreDescriptionDocument/p:pbcoreCoverage[1]/p:coverage",
                              MappingTuple.Type.STRING, true)));
 
+    private final NodeLocator subjectKeywordLocator
+            = pbcoreTemplate.compileLocator("/p:PBCoreDescriptionDocument/p:pbcoreSubject[1]/p:subject");
+    private final NodeLocator subjectLocator
+            = pbcoreTemplate.compileLocator("/p:PBCoreDescriptionDocument/p:pbcoreSubject[2]/p:subject");
+    private final NodeLocator subject2Locator
+            = pbcoreTemplate.compileLocator("/p:PBCoreDescriptionDocument/p:pbcoreSubject[3]/p:subject");
+    private final NodeLocator decadeLocator
+            = pbcoreTemplate.compileLocator("/p:PBCoreDescriptionDocument/p:pbcoreCoverage[2]/p:coverage");
+    private final NodeLocator languageLocator
+            = pbcoreTemplate.compileLocator("/p:PBCoreDescriptionDocument/p:pbcoreInstantiation/p:language");
+    private final NodeLocator creatorTemplateLocator
+            = pbcoreTemplate.compileLocator("/p:PBCoreDescriptionDocument/p:pbcoreCreator");
+    private final NodeLocator contributorTemplateLocator
+            = pbcoreTemplate.compileLocator("/p:PBCoreDescriptionDocument/p:pbcoreContributor");
+    private final NodeLocator[] creatorFieldLocators = new NodeLocator[]{
+            pbcoreTemplate.compileLocator(creatorTemplateLocator, "p:creator"),
+            pbcoreTemplate.compileLocator(creatorTemplateLocator, "p:creatorRole")};
+    private final NodeLocator[] contributorFieldLocators = new NodeLocator[]{
+            pbcoreTemplate.compileLocator(contributorTemplateLocator, "p:contributor"),
+            pbcoreTemplate.compileLocator(contributorTemplateLocator, "p:contributorRole")};
+
+    private final int batchSize;
+    private final int threads;
+    private int fetchSize = DEFAULT_FETCH_SIZE;
+    private int pageSize;
+    private ExportCheckpoint resumeCheckpoint;
+    private final ValueConverter valueConverter = new ValueConverter();
+    private OutputEngine outputEngine = OutputEngine.DOM;
+    private Timestamp modifiedSince;
+    private Timestamp lastModified;
+    private MappingMetrics metrics = new MappingMetrics();
+    private Set<Integer> adIDs;
+    private RejectLog rejectLog;
+    private PBCoreValidator validator;
+    private OutputIndex outputIndex;
+    private OutputLayout outputLayout = OutputLayout.FLAT;
+    private BiografDimensions dimensions;
+
+    /**
+     * Initialise the mapper, fetching child rows for {@link #DEFAULT_BATCH_SIZE} advertisements at a time.
+     *
+     * @throws IllegalStateException If the template does not match the mapping table.
+     */
+    public BiografPBCoreMapper() {
+        this(DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Initialise the mapper, mapping advertisements in the calling thread.
+     *
+     * @param batchSize Number of advertisements to fetch child rows for in one query.
+     * @throws IllegalStateException If the template does not match the mapping table.
+     */
+    public BiografPBCoreMapper(int batchSize) {
+        this(batchSize, 1);
+    }
+
+    /**
+     * Initialise the mapper, resolving the mapping table against the PBCore template.
+     *
+     * @param batchSize Number of advertisements to fetch child rows for in one query.
+     * @param threads Number of threads to map advertisements with per connection. With one thread, advertisements
+     * are mapped and written in the calling thread.
+     * @throws IllegalStateException If the template does not match the mapping table.
+     */
+    public BiografPBCoreMapper(int batchSize, int threads) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive, was " + batchSize);
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of threads must be positive, was " + threads);
+        }
+        this.batchSize = batchSize;
+        this.threads = threads;
+        for (MappingTuple pbcoreBiografTemplateMappingTuple : pbcoreBiografTemplateMappingTuples) {
+            pbcoreBiografTemplateMappingTuple.locator
+                    = pbcoreTemplate.compileLocator(pbcoreBiografTemplateMappingTuple.xpath);
+            pbcoreBiografTemplateMappingTuple.removeLocator = pbcoreBiografTemplateMappingTuple.parent
+                    ? pbcoreBiografTemplateMappingTuple.locator.getParent()
+                    : pbcoreBiografTemplateMappingTuple.locator;
+        }
+    }
+
+
+    /**
+     * Set how PBCore documents are built and written. Defaults to {@link OutputEngine#DOM}.
+     *
+     * @param outputEngine The output engine.
+     */
+    public void setOutputEngine(OutputEngine outputEngine) {
+        this.outputEngine = outputEngine;
+    }
+
+    /**
+     * Set the number of rows the database driver is asked to fetch at a time when reading advertisements, so they
+     * are streamed rather than read into memory at once. Defaults to {@link #DEFAULT_FETCH_SIZE}.
+     *
+     * @param fetchSize The fetch size, or 0 to use the default of the driver.
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Read advertisements in pages of the given number of advertisements, in order of AdID, with a query per page.
+     * By default all advertisements are read with one query, or in pages of {@link #DEFAULT_PAGE_SIZE} with a resume
+     * checkpoint.
+     *
+     * @param pageSize The page size, or 0 to read all advertisements with one query.
+     */
+    public void setPageSize(int pageSize) {
+        if (pageSize < 0) {
+            throw new IllegalArgumentException("Page size must not be negative, was " + pageSize);
+        }
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Save the last AdID of each page of advertisements written to a checkpoint, and resume after the AdID saved by
+     * an interrupted export. When all advertisements have been exported, the AdID is removed from the checkpoint. With
+     * a checkpoint, advertisements are exported in pages on a single connection.
+     *
+     * @param resumeCheckpoint The checkpoint, or null to export all advertisements without saving progress.
+     */
+    public void setResumeCheckpoint(ExportCheckpoint resumeCheckpoint) {
+        this.resumeCheckpoint = resumeCheckpoint;
+    }
+
+    /**
+     * Only export advertisements modified after the given time. By default all advertisements are exported.
+     *
+     * @param modifiedSince The time of the previous export, or null to export all advertisements.
+     */
+    public void setModifiedSince(Timestamp modifiedSince) {
+        this.modifiedSince = modifiedSince;
+    }
+
+    /**
+     * Only export the given advertisements, such as the advertisements rejected by a previous run. By default all
+     * advertisements are exported.
+     *
+     * @param adIDs The AdIDs of the advertisements to export, or null to export all advertisements.
+     * @see RejectLog#readIdentifiers(File)
+     */
+    public void setAdIDs(Set<Integer> adIDs) {
+        this.adIDs = adIDs;
+    }
+
+    /**
+     * Set the log to write advertisements that could not be mapped to, identified by their AdID. By default
+     * advertisements that could not be mapped are only reported on standard error.
+     *
+     * @param rejectLog The reject log, or null.
+     */
+    public void setRejectLog(RejectLog rejectLog) {
+        this.rejectLog = rejectLog;
+    }
+
+    /**
+     * Validate each PBCore document before it is written. Documents that are not valid are handled like
+     * advertisements that could not be mapped. By default documents are not validated.
+     *
+     * @param validator The validator, or null.
+     */
+    public void setValidator(PBCoreValidator validator) {
+        this.validator = validator;
+    }
+
+    /**
+     * Set the index to add the PBCore file of each advertisement to. By default no index is kept.
+     *
+     * @param outputIndex The index, or null.
+     */
+    public void setOutputIndex(OutputIndex outputIndex) {
+        this.outputIndex = outputIndex;
+    }
+
+    /**
+     * Set the layout of the PBCore files in the output. The {@link OutputLayout#DATE} layout uses the month of the
+     * premiere. By default all files are written to the output directory itself.
+     *
+     * @param outputLayout The layout.
+     */
+    public void setOutputLayout(OutputLayout outputLayout) {
+        this.outputLayout = outputLayout;
+    }
+
+    /**
+     * Get the latest modification time of the advertisements read so far, including retracted advertisements. This
+     * is the time to pass to {@link #setModifiedSince(Timestamp)} on the next export.
+     *
+     * @return The latest modification time, or null if no advertisements have been read.
+     */
+    public synchronized Timestamp getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Set the metrics to record the mapping stages in. By default the mapper has metrics of its own.
+     *
+     * @param metrics The metrics.
+     */
+    public void setMetrics(MappingMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Get the metrics the mapping stages are recorded in, including the number of advertisements that could not be
+     * mapped.
+     *
+     * @return The metrics.
+     */
+    public MappingMetrics getMetrics() {
+        return metrics;
+    }
 
     public void mapSQLDataToPBCoreFiles(File outputdir, Connection c) throws SQLException, ClassNotFoundException {
-        Statement statement = c.createStatement();
-        statement.execute(SQL_QUERY_AD);
-        ResultSet resultSet = statement.getResultSet();
-        mapSQLDataToPBCoreFiles(resultSet, outputdir, c);
+        mapSQLDataToPBCoreFiles(new DirectoryOutputSink(outputdir), c);
+    }
+
+    /**
+     * Map all advertisements to PBCore files, using one connection.
+     *
+     * @param outputSink The sink to write PBCore files to. It is not closed.
+     * @param c The connection to query.
+     * @throws SQLException On trouble querying the database.
+     */
+    public void mapSQLDataToPBCoreFiles(OutputSink outputSink, Connection c) throws SQLException {
+        dimensions = BiografDimensions.load(c);
+        mapAdvertisements(outputSink, c);
     }
 
-    private void mapSQLDataToPBCoreFiles(ResultSet resultSet, File outputdir, Connection c) throws SQLException {
+    /**
+     * Map the advertisements of an export on one connection, through one pipeline, and wait until they are written.
+     */
+    private void mapAdvertisements(OutputSink outputSink, Connection c) throws SQLException {
+        MappingPipeline pipeline = threads == 1 ? null : new MappingPipeline(outputSink, threads);
+        boolean finished = false;
+        try {
+            mapAdvertisements(outputSink, c, pipeline);
+            if (pipeline != null) {
+                pipeline.finish();
+            }
+            finished = true;
+        } finally {
+            if (pipeline != null) {
+                if (!finished) {
+                    pipeline.finishAfterFailure();
+                }
+                pipeline.close();
+            }
+        }
+        if (adIDs == null && resumeCheckpoint != null) {
+            // The export is complete, so a later export starts from the beginning
+            saveResumeCheckpoint(null);
+        }
+    }
+
+    private void mapAdvertisements(OutputSink outputSink, Connection c, MappingPipeline pipeline)
+            throws SQLException {
+        if (adIDs != null) {
+            mapSQLDataToPBCoreFiles(outputSink, c, new ArrayList<Integer>(adIDs), pipeline);
+            return;
+        }
+        if (pageSize > 0 || resumeCheckpoint != null) {
+            Integer lastAdID = resumeCheckpoint == null ? null : resumeCheckpoint.getLastAdID();
+            mapPages(outputSink, c, lastAdID == null ? Integer.MIN_VALUE : lastAdID, null, pipeline);
+            return;
+        }
+        long start = metrics.start();
+        PreparedStatement statement = prepareAdQuery(SQL_QUERY_AD, "", c);
+        ResultSet resultSet = statement.executeQuery();
+        metrics.record(MappingMetrics.QUERY + "advertisement", start);
+        mapSQLDataToPBCoreFiles(resultSet, outputSink, c, pipeline);
+        statement.close();
+    }
+
+    /**
+     * Map the advertisements after an AdID in pages, in order of AdID.
+     *
+     * @param afterAdID The AdID to start after.
+     * @param toAdID The AdID to stop before, or null to map all advertisements after afterAdID.
+     */
+    private void mapPages(OutputSink outputSink, Connection c, int afterAdID, Integer toAdID,
+                          MappingPipeline pipeline) throws SQLException {
+        int pageSize = this.pageSize > 0 ? this.pageSize : DEFAULT_PAGE_SIZE;
+        String restriction = SQL_AD_ID_AFTER + (toAdID == null ? "" : SQL_AD_ID_BEFORE) + SQL_ORDER_BY_AD_ID;
+        int lastAdID = afterAdID;
+        Page page;
+        do {
+            long start = metrics.start();
+            PreparedStatement statement = prepareAdQuery(SQL_QUERY_AD, restriction, c);
+            int parameterIndex = modifiedSince == null ? 1 : 2;
+            statement.setInt(parameterIndex, lastAdID);
+            if (toAdID != null) {
+                statement.setInt(parameterIndex + 1, toAdID);
+            }
+            statement.setMaxRows(pageSize);
+            ResultSet resultSet = statement.executeQuery();
+            metrics.record(MappingMetrics.QUERY + "advertisement", start);
+            page = mapSQLDataToPBCoreFiles(resultSet, outputSink, c, pipeline);
+            statement.close();
+            if (page.lastAdID != null) {
+                lastAdID = page.lastAdID;
+                if (resumeCheckpoint != null) {
+                    checkpointPage(lastAdID, pipeline);
+                }
+            }
+            // A page with fewer advertisements than the page size is the last
+        } while (page.advertisements == pageSize);
+    }
+
+    /**
+     * Save the last AdID of a page in the resume checkpoint, once all advertisements of the page are written.
+     */
+    private void checkpointPage(int lastAdID, MappingPipeline pipeline) throws SQLException {
+        if (pipeline != null) {
+            pipeline.checkpoint(lastAdID);
+        } else {
+            saveResumeCheckpoint(lastAdID);
+        }
+    }
+
+    private void saveResumeCheckpoint(Integer lastAdID) {
+        resumeCheckpoint.setLastAdID(lastAdID);
+        try {
+            resumeCheckpoint.save();
+        } catch (IOException e) {
+            //TODO logging
+            // The export continues, but can only be resumed from an earlier page
+            e.printStackTrace(System.err);
+        }
+    }
+
+    private void mapSQLDataToPBCoreFiles(OutputSink outputSink, Connection c, List<Integer> adIDs,
+                                         MappingPipeline pipeline) throws SQLException {
+        for (int from = 0; from < adIDs.size(); from += batchSize) {
+            List<Integer> batch = adIDs.subList(from, Math.min(from + batchSize, adIDs.size()));
+            StringBuilder placeholders = new StringBuilder();
+            for (int i = 0; i < batch.size(); i++) {
+                placeholders.append(i == 0 ? "?" : ",?");
+            }
+            long start = metrics.start();
+            PreparedStatement statement = prepareAdQuery(SQL_QUERY_AD, String.format(SQL_AD_ID_IN, placeholders), c);
+            int parameterIndex = modifiedSince == null ? 1 : 2;
+            for (Integer adID : batch) {
+                statement.setInt(parameterIndex++, adID);
+            }
+            ResultSet resultSet = statement.executeQuery();
+            metrics.record(MappingMetrics.QUERY + "advertisement", start);
+            mapSQLDataToPBCoreFiles(resultSet, outputSink, c, pipeline);
+            statement.close();
+        }
+    }
+
+    /**
+     * Write all advertisements, with the values of their child relations, to a snapshot that can be mapped with
+     * {@link #mapSnapshotToPBCoreFiles(BiografSnapshotReader, OutputSink)} without querying the database. When only
+     * exporting advertisements modified since a given time, only advertisements modified since then are written.
+     *
+     * @param snapshotWriter The snapshot to write to. It is not closed.
+     * @param c The connection to query.
+     * @throws SQLException On trouble querying the database.
+     * @throws IOException On trouble writing the snapshot.
+     */
+    public void extractSnapshot(BiografSnapshotWriter snapshotWriter, Connection c) throws SQLException, IOException {
+        dimensions = BiografDimensions.load(c);
+        long start = metrics.start();
+        PreparedStatement statement = prepareAdQuery(SQL_QUERY_AD, SQL_ORDER_BY_AD_ID, c);
+        ResultSet resultSet = statement.executeQuery();
+        metrics.record(MappingMetrics.QUERY + "advertisement", start);
+        Map<Integer, BiografRecord> records = new LinkedHashMap<Integer, BiografRecord>();
+        start = metrics.start();
         while (resultSet.next()) {
-            try {
-                mapResultSetToPBCoreFile(resultSet, outputdir, c);
-            } catch (Exception e) {
-                //TODO logging
-                e.printStackTrace(System.err);
+            BiografRecord record = readRecord(resultSet);
+            updateLastModified(resultSet.getTimestamp(17));
+            metrics.record(MappingMetrics.FETCH, start);
+            records.put(record.getAdID(), record);
+            if (records.size() >= batchSize) {
+                writeSnapshotRecords(records, snapshotWriter, c);
+                records.clear();
             }
+            start = metrics.start();
         }
+        if (!records.isEmpty()) {
+            writeSnapshotRecords(records, snapshotWriter, c);
+        }
+        statement.close();
     }
 
-    private void mapResultSetToPBCoreFile(ResultSet resultSet, File outputdir, Connection c)
-            throws ParseException, IOException, TransformerException, SQLException {
-        // Initiate pbcore template
-        Document pbcoreDocument = DOM
-                .streamToDOM(getClass().getClassLoader().getResourceAsStream("pbcorebiograftemplate.xml"), true);
-        // Inject data
-        List<Node> nodesToDelete = new ArrayList<Node>();
+    private void writeSnapshotRecords(Map<Integer, BiografRecord> records, BiografSnapshotWriter snapshotWriter,
+                                      Connection c) throws SQLException, IOException {
+        readChildRecords(records, c);
+        long start = metrics.start();
+        for (BiografRecord record : records.values()) {
+            snapshotWriter.write(record);
+        }
+        metrics.record(MappingMetrics.WRITE, start);
+    }
+
+    /**
+     * Map the advertisements of a snapshot written by {@link #extractSnapshot(BiografSnapshotWriter, Connection)} to
+     * PBCore files. Only advertisements given to {@link #setAdIDs(Set)} are mapped, if set.
+     *
+     * @param snapshotReader The snapshot to read. It is not closed.
+     * @param outputSink The sink to write PBCore files to. It is not closed.
+     * @throws IOException On trouble reading the snapshot, or if the mapping threads fail.
+     */
+    public void mapSnapshotToPBCoreFiles(BiografSnapshotReader snapshotReader, OutputSink outputSink)
+            throws IOException {
+        MappingPipeline pipeline = threads == 1 ? null : new MappingPipeline(outputSink, threads);
+        try {
+            long start = metrics.start();
+            BiografRecord record;
+            while ((record = snapshotReader.readRecord()) != null) {
+                metrics.record(MappingMetrics.FETCH, start);
+                if (adIDs == null || adIDs.contains(record.getAdID())) {
+                    mapRecordToPBCoreFile(record, outputSink, pipeline);
+                }
+                start = metrics.start();
+            }
+            if (pipeline != null) {
+                pipeline.finish();
+            }
+        } catch (SQLException e) {
+            // The mapping pipeline reports failures of its threads as SQLExceptions
+            throw new IOException("Failed mapping Biograf snapshot", e);
+        } finally {
+            if (pipeline != null) {
+                pipeline.close();
+            }
+        }
+    }
+
+    /**
+     * Find the advertisements that no longer have a file, and whose PBCore files should therefore be retracted.
+     * When only exporting advertisements modified since a given time, only advertisements modified since then are
+     * returned.
+     *
+     * @param c The connection to query.
+     * @return The AdIDs of the retracted advertisements, in ascending order.
+     * @throws SQLException On trouble querying the database.
+     */
+    public List<Integer> findRetractedAdIDs(Connection c) throws SQLException {
+        PreparedStatement statement = prepareAdQuery(SQL_QUERY_RETRACTED, "", c);
+        ResultSet resultSet = statement.executeQuery();
+        List<Integer> adIDs = new ArrayList<Integer>();
+        while (resultSet.next()) {
+            adIDs.add(resultSet.getInt(1));
+            updateLastModified(resultSet.getTimestamp(2));
+        }
+        statement.close();
+        Collections.sort(adIDs);
+        return adIDs;
+    }
+
+    /**
+     * Map all advertisements to PBCore files, using the connections of a pool. With more than one connection in the
+     * pool, the AdID space is split into ranges that are exported in parallel.
+     *
+     * @param outputdir The directory to write PBCore files to.
+     * @param connectionPool The pool to take connections from.
+     * @throws SQLException On trouble querying the database.
+     */
+    public void mapSQLDataToPBCoreFiles(File outputdir, ConnectionPool connectionPool) throws SQLException {
+        mapSQLDataToPBCoreFiles(new DirectoryOutputSink(outputdir), connectionPool);
+    }
+
+    /**
+     * Map all advertisements to PBCore files, using the connections of a pool. With more than one connection in the
+     * pool, the AdID space is split into ranges that are exported in parallel. Advertisements given to
+     * {@link #setAdIDs(Set)}, and exports with a resume checkpoint, are exported on a single connection.
+     *
+     * @param outputSink The sink to write PBCore files to. It is not closed.
+     * @param connectionPool The pool to take connections from.
+     * @throws SQLException On trouble querying the database.
+     */
+    public void mapSQLDataToPBCoreFiles(final OutputSink outputSink, final ConnectionPool connectionPool)
+            throws SQLException {
+        Connection connection = connectionPool.getConnection();
+        int minAdID;
+        int maxAdID;
+        try {
+            dimensions = BiografDimensions.load(connection);
+            if (connectionPool.getSize() == 1 || adIDs != null || resumeCheckpoint != null) {
+                mapAdvertisements(outputSink, connection);
+                return;
+            }
+            PreparedStatement statement = prepareAdQuery(SQL_QUERY_AD_ID_RANGE, "", connection);
+            ResultSet resultSet = statement.executeQuery();
+            resultSet.next();
+            minAdID = resultSet.getInt(1);
+            maxAdID = resultSet.getInt(2);
+            statement.close();
+        } finally {
+            connectionPool.releaseConnection(connection);
+        }
+
+        int ranges = connectionPool.getSize() * RANGES_PER_CONNECTION;
+        long rangeSize = ((long) maxAdID - minAdID) / ranges + 1;
+        // One pipeline for all ranges, with the worker threads of all connections
+        final MappingPipeline pipeline = threads == 1 ? null
+                : new MappingPipeline(outputSink, threads * connectionPool.getSize());
+        ExecutorService executorService = Executors.newFixedThreadPool(connectionPool.getSize());
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (long rangeStart = minAdID; rangeStart <= maxAdID; rangeStart += rangeSize) {
+                final int fromAdID = (int) rangeStart;
+                final int toAdID = (int) Math.min(rangeStart + rangeSize, (long) maxAdID + 1);
+                results.add(executorService.submit(new Callable<Void>() {
+                    public Void call() throws SQLException {
+                        mapSQLDataToPBCoreFiles(outputSink, connectionPool, fromAdID, toAdID, pipeline);
+                        return null;
+                    }
+                }));
+            }
+            SQLException failure = null;
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    if (failure == null) {
+                        failure = (SQLException) e.getCause();
+                    }
+                    //TODO logging
+                    e.getCause().printStackTrace(System.err);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while mapping advertisements", e);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (pipeline != null) {
+                pipeline.finish();
+            }
+        } finally {
+            executorService.shutdownNow();
+            if (pipeline != null) {
+                pipeline.close();
+            }
+        }
+    }
+
+    private void mapSQLDataToPBCoreFiles(OutputSink outputSink, ConnectionPool connectionPool, int fromAdID,
+                                         int toAdID, MappingPipeline pipeline) throws SQLException {
+        Connection connection = connectionPool.getConnection();
+        try {
+            if (pageSize > 0) {
+                mapPages(outputSink, connection, fromAdID - 1, toAdID, pipeline);
+                return;
+            }
+            long start = metrics.start();
+            PreparedStatement statement = prepareAdQuery(SQL_QUERY_AD, SQL_AD_ID_RANGE, connection);
+            int parameterIndex = modifiedSince == null ? 1 : 2;
+            statement.setInt(parameterIndex, fromAdID);
+            statement.setInt(parameterIndex + 1, toAdID);
+            ResultSet resultSet = statement.executeQuery();
+            metrics.record(MappingMetrics.QUERY + "advertisement", start);
+            mapSQLDataToPBCoreFiles(resultSet, outputSink, connection, pipeline);
+            statement.close();
+        } finally {
+            connectionPool.releaseConnection(connection);
+        }
+    }
+
+    /**
+     * Prepare a query on the advertisement table, restricted to advertisements modified since the time given to
+     * {@link #setModifiedSince(Timestamp)}. If so, the time is the first parameter of the query.
+     *
+     * @param query A query ending with its WHERE clause.
+     * @param restriction Further restrictions to add to the WHERE clause.
+     */
+    private PreparedStatement prepareAdQuery(String query, String restriction, Connection c) throws SQLException {
+        PreparedStatement statement;
+        if (modifiedSince == null) {
+            statement = c.prepareStatement(query + restriction);
+        } else {
+            statement = c.prepareStatement(query + SQL_MODIFIED_SINCE + restriction);
+            statement.setTimestamp(1, modifiedSince);
+        }
+        statement.setFetchSize(fetchSize);
+        return statement;
+    }
+
+    private synchronized void updateLastModified(Timestamp modified) {
+        if (modified != null && (lastModified == null || modified.after(lastModified))) {
+            lastModified = modified;
+        }
+    }
+
+    /**
+     * Map the advertisements of a result set. With a pipeline, they are submitted to it, and may not be written yet
+     * when this returns.
+     *
+     * @return The number of advertisements, and the AdID of the last one.
+     */
+    private Page mapSQLDataToPBCoreFiles(ResultSet resultSet, OutputSink outputSink, Connection c,
+                                         MappingPipeline pipeline) throws SQLException {
+        Page page = new Page();
+        Map<Integer, BiografRecord> records = new LinkedHashMap<Integer, BiografRecord>();
+        long start = metrics.start();
+        while (resultSet.next()) {
+            BiografRecord record = readRecord(resultSet);
+            page.advertisements++;
+            page.lastAdID = record.getAdID();
+            updateLastModified(resultSet.getTimestamp(17));
+            metrics.record(MappingMetrics.FETCH, start);
+            records.put(record.getAdID(), record);
+            if (records.size() >= batchSize) {
+                mapRecordsToPBCoreFiles(records, outputSink, c, pipeline);
+                records.clear();
+            }
+            start = metrics.start();
+        }
+        if (!records.isEmpty()) {
+            mapRecordsToPBCoreFiles(records, outputSink, c, pipeline);
+        }
+        return page;
+    }
+
+    private void mapRecordsToPBCoreFiles(Map<Integer, BiografRecord> records, OutputSink outputSink, Connection c,
+                                         MappingPipeline pipeline) throws SQLException {
+        readChildRecords(records, c);
+        for (BiografRecord record : records.values()) {
+            mapRecordToPBCoreFile(record, outputSink, pipeline);
+        }
+    }
+
+    private void mapRecordToPBCoreFile(BiografRecord record, OutputSink outputSink, MappingPipeline pipeline)
+            throws SQLException {
+        if (pipeline != null) {
+            pipeline.submit(record);
+            return;
+        }
+        String filename = null;
+        try {
+            filename = getFileName(record);
+            writePBCoreFile(record, filename, mapRecordToPBCore(record), outputSink);
+        } catch (Exception e) {
+            reportFailure(record, filename, e, outputSink);
+        }
+    }
+
+    private void writePBCoreFile(MappedRecord mappedRecord, OutputSink outputSink) throws InterruptedException {
+        String filename = null;
+        try {
+            filename = getFileName(mappedRecord.record);
+            writePBCoreFile(mappedRecord.record, filename, mappedRecord.pbcore.get(), outputSink);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            reportFailure(mappedRecord.record, filename, (Exception) e.getCause(), outputSink);
+        } catch (Exception e) {
+            reportFailure(mappedRecord.record, filename, e, outputSink);
+        }
+    }
+
+    private void writePBCoreFile(BiografRecord record, String filename, byte[] pbcore, OutputSink outputSink)
+            throws IOException {
+        long start = metrics.start();
+        // Hash the file once, for both the index and a manifest
+        String checksum = outputIndex != null ? OutputManifest.md5(pbcore) : null;
+        outputSink.write(filename, pbcore, checksum);
+        if (outputIndex != null) {
+            outputIndex.add(Integer.toString(record.getAdID()), filename,
+                            valueConverter.convertFileLocation((String) record.getValue(19)), pbcore.length, checksum);
+        }
+        metrics.record(MappingMetrics.WRITE, start);
+        metrics.recordMapped();
+    }
+
+    private void reportFailure(BiografRecord record, String filename, Exception e, OutputSink outputSink) {
+        metrics.recordFailed();
+        if (rejectLog != null) {
+            rejectLog.reject(record.getAdID(), e);
+        }
+        if (filename != null) {
+            outputSink.retain(filename);
+        }
+        if (outputIndex != null) {
+            outputIndex.retain(Integer.toString(record.getAdID()));
+        }
+        //TODO logging
+        e.printStackTrace(System.err);
+    }
+
+    private BiografRecord readRecord(ResultSet resultSet) throws SQLException {
+        BiografRecord record = new BiografRecord(resultSet.getInt(1), SQL_QUERY_AD_COLUMNS);
         for (MappingTuple pbcoreBiografTemplateMappingTuple : pbcoreBiografTemplateMappingTuples) {
-            String value;
+            int resultindex = pbcoreBiografTemplateMappingTuple.resultindex;
             switch (pbcoreBiografTemplateMappingTuple.type) {
-                case STRING:
-                    value = resultSet.getString(pbcoreBiografTemplateMappingTuple.resultindex);
-                    break;
                 case DATE:
-                    Date date = resultSet.getDate(pbcoreBiografTemplateMappingTuple.resultindex);
-                    value = date == null ? null : OUTPUT_DATE_FORMAT.format(date);
+                    record.setValue(resultindex, resultSet.getDate(resultindex));
                     break;
                 case DURATION:
-                    int duration = resultSet.getInt(pbcoreBiografTemplateMappingTuple.resultindex);
-                    value = DURATION_FORMAT.format(new Date(duration * 1000L));
-                    break;
                 case INT:
-                    int number = resultSet.getInt(pbcoreBiografTemplateMappingTuple.resultindex);
-                    value = Integer.toString(number);
-                    break;
-                case FILE:
-                    value = URLEncoder.encode(resultSet.getString(pbcoreBiografTemplateMappingTuple.resultindex).replaceAll(Pattern.quote("+"), " "), "UTF-8").replaceAll("\\+", "%20");
-                    break;
-                case EXTENSIONCENSORCARDDATA1:
-                    value = resultSet.getString(pbcoreBiografTemplateMappingTuple.resultindex);
-                    value = value == null ? null : "censorcarddata1: "  + value;
-                    break;
-                case EXTENSIONCENSORCARDDATA2:
-                    value = resultSet.getString(pbcoreBiografTemplateMappingTuple.resultindex);
-                    value = value == null ? null : "censorcarddata2: "  + value;
-                    break;
-                case EXTENSIONCENSORCARDDATA3:
-                    value = resultSet.getString(pbcoreBiografTemplateMappingTuple.resultindex);
-                    value = value == null ? null : "censorcarddata3: "  + value;
-                    break;
-                case EXTENSIONCENSORDATE:
-                    value = resultSet.getString(pbcoreBiografTemplateMappingTuple.resultindex);
-                    value = value == null ? null : "censordate: "  + value;
-                    break;
-                case EXTENSIONCENSORESTIMATEDREELLENGTH:
-                    value = resultSet.getString(pbcoreBiografTemplateMappingTuple.resultindex);
-                    value = value == null ? null : "censorestimatedreellength: "  + value;
-                    break;
-                case EXTENSIONCENSORCARD:
-                    value = resultSet.getString(pbcoreBiografTemplateMappingTuple.resultindex);
-                    value = value == null ? null : "censorcard: "  + value;
+                    record.setValue(resultindex, resultSet.getInt(resultindex));
                     break;
                 default:
-                    value = resultSet.getString(pbcoreBiografTemplateMappingTuple.resultindex);
+                    record.setValue(resultindex, resultSet.getString(resultindex));
                     break;
             }
-            Node node = XPATH_SELECTOR.selectNode(pbcoreDocument, pbcoreBiografTemplateMappingTuple.xpath);
-            if (value != null) {
-                node.setTextContent(value);
-            } else {
-                if (pbcoreBiografTemplateMappingTuple.parent) {
-                    nodesToDelete.add(node.getParentNode());
+        }
+        return record;
+    }
+
+    private void readChildRecords(Map<Integer, BiografRecord> records, Connection c) throws SQLException {
+        long start = metrics.start();
+        PreparedStatement subjectStatement = prepareChildQuery(SQL_QUERY_SUBJECT_REKLAMEFILM, records, c);
+        ResultSet subjects = subjectStatement.executeQuery();
+        while (subjects.next()) {
+            String[] subject = dimensions.getSubjectReklamefilm(subjects.getInt(2));
+            if (subject != null) {
+                records.get(subjects.getInt(1)).getSubjectsReklamefilm().add(subject);
+            }
+        }
+        subjectStatement.close();
+        metrics.record(MappingMetrics.QUERY + "subjectReklamefilm", start);
+
+        start = metrics.start();
+        PreparedStatement subjectKeywordStatement = prepareChildQuery(SQL_QUERY_SUBJECT_KEYWORD, records, c);
+        ResultSet subjectKeywords = subjectKeywordStatement.executeQuery();
+        while (subjectKeywords.next()) {
+            String subjectKeyword = dimensions.getSubjectKeyword(subjectKeywords.getInt(2));
+            if (subjectKeyword != null) {
+                records.get(subjectKeywords.getInt(1)).getSubjectKeywords().add(subjectKeyword);
+            }
+        }
+        subjectKeywordStatement.close();
+        metrics.record(MappingMetrics.QUERY + "subjectKeyword", start);
+
+        start = metrics.start();
+        PreparedStatement decadeStatement = prepareChildQuery(SQL_QUERY_DECADE, records, c);
+        ResultSet decades = decadeStatement.executeQuery();
+        while (decades.next()) {
+            String decade = dimensions.getDecade(decades.getInt(2));
+            if (decade != null) {
+                records.get(decades.getInt(1)).getDecades().add(decade);
+            }
+        }
+        decadeStatement.close();
+        metrics.record(MappingMetrics.QUERY + "decade", start);
+
+        start = metrics.start();
+        PreparedStatement langStatement = prepareChildQuery(SQL_QUERY_LANGUAGE, records, c);
+        ResultSet languages = langStatement.executeQuery();
+        while (languages.next()) {
+            String language = dimensions.getLanguage(languages.getInt(2));
+            if (language != null) {
+                records.get(languages.getInt(1)).getLanguages().add(language);
+            }
+        }
+        langStatement.close();
+        metrics.record(MappingMetrics.QUERY + "language", start);
+
+        start = metrics.start();
+        PreparedStatement creatorStatement = prepareChildQuery(SQL_QUERY_CREATOR, records, c);
+        ResultSet creators = creatorStatement.executeQuery();
+        while (creators.next()) {
+            String role = dimensions.getCreatorRole(creators.getInt(2));
+            if (role != null) {
+                records.get(creators.getInt(1)).getCreators().add(new String[]{role, creators.getString(3)});
+            }
+        }
+        creatorStatement.close();
+        metrics.record(MappingMetrics.QUERY + "creator", start);
+
+        start = metrics.start();
+        PreparedStatement contributorStatement = prepareChildQuery(SQL_QUERY_CONTRIBUTOR, records, c);
+        ResultSet contributors = contributorStatement.executeQuery();
+        while (contributors.next()) {
+            String role = dimensions.getContributorRole(contributors.getInt(2));
+            if (role != null) {
+                records.get(contributors.getInt(1)).getContributors()
+                        .add(new String[]{role, contributors.getString(3)});
+            }
+        }
+        contributorStatement.close();
+        metrics.record(MappingMetrics.QUERY + "contributor", start);
+    }
+
+    private PreparedStatement prepareChildQuery(String query, Map<Integer, BiografRecord> records, Connection c)
+            throws SQLException {
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < records.size(); i++) {
+            placeholders.append(i == 0 ? "?" : ",?");
+        }
+        PreparedStatement statement = c.prepareStatement(String.format(query, placeholders));
+        int parameterIndex = 1;
+        for (Integer adID : records.keySet()) {
+            statement.setInt(parameterIndex++, adID);
+        }
+        return statement;
+    }
+
+    private byte[] mapRecordToPBCore(BiografRecord record) throws MappingException, IOException {
+        long start = metrics.start();
+        // Initiate pbcore template
+        PBCoreDocument pbcoreDocument = pbcoreTemplate.createDocument(outputEngine);
+        start = metrics.record(MappingMetrics.INSTANTIATE, start);
+        // Inject data
+        for (MappingTuple pbcoreBiografTemplateMappingTuple : pbcoreBiografTemplateMappingTuples) {
+            try {
+                Object recordValue = record.getValue(pbcoreBiografTemplateMappingTuple.resultindex);
+                String value;
+                switch (pbcoreBiografTemplateMappingTuple.type) {
+                    case DATE:
+                        value = recordValue == null ? null : valueConverter.convertDate((Date) recordValue);
+                        break;
+                    case DURATION:
+                        int duration = (Integer) recordValue;
+                        value = valueConverter.convertDuration(duration);
+                        break;
+                    case INT:
+                        int number = (Integer) recordValue;
+                        value = Integer.toString(number);
+                        break;
+                    case FILE:
+                        value = valueConverter.convertFileLocation((String) recordValue);
+                        break;
+                    case EXTENSIONCENSORCARDDATA1:
+                        value = valueConverter.convertExtension("censorcarddata1", recordValue);
+                        break;
+                    case EXTENSIONCENSORCARDDATA2:
+                        value = valueConverter.convertExtension("censorcarddata2", recordValue);
+                        break;
+                    case EXTENSIONCENSORCARDDATA3:
+                        value = valueConverter.convertExtension("censorcarddata3", recordValue);
+                        break;
+                    case EXTENSIONCENSORDATE:
+                        value = valueConverter.convertExtension("censordate", recordValue);
+                        break;
+                    case EXTENSIONCENSORESTIMATEDREELLENGTH:
+                        value = valueConverter.convertExtension("censorestimatedreellength", recordValue);
+                        break;
+                    case EXTENSIONCENSORCARD:
+                        value = valueConverter.convertExtension("censorcard", recordValue);
+                        break;
+                    default:
+                        value = (String) recordValue;
+                        break;
+                }
+                if (value != null) {
+                    pbcoreDocument.setText(pbcoreBiografTemplateMappingTuple.locator, value);
                 } else {
-                    nodesToDelete.add(node);
+                    pbcoreDocument.remove(pbcoreBiografTemplateMappingTuple.removeLocator);
                 }
+            } catch (Exception e) {
+                throw new MappingException(pbcoreBiografTemplateMappingTuple.xpath, e);
             }
         }
 
-        int adID = resultSet.getInt(1);
-
         //subject reklamefilm
-        PreparedStatement subjectStatement = c.prepareStatement(SQL_QUERY_SUBJECT_REKLAMEFILM);
-        subjectStatement.setInt(1, adID);
-        subjectStatement.execute();
-        ResultSet subjects = subjectStatement.getResultSet();
-        Node subjectNode = XPATH_SELECTOR
-                .selectNode(pbcoreDocument, "/p:PBCoreDescriptionDocument/p:pbcoreSubject[2]/p:subject");
-        Node subjectNode2 = XPATH_SELECTOR
-                .selectNode(pbcoreDocument, "/p:PBCoreDescriptionDocument/p:pbcoreSubject[3]/p:subject");
-        if (subjects.next()) {
-            String subjectString = subjects.getString(1);
+        if (!record.getSubjectsReklamefilm().isEmpty()) {
+            String subjectString = record.getSubjectsReklamefilm().get(0)[0];
             if (subjectString.isEmpty()) {
-                nodesToDelete.add(subjectNode.getParentNode());
+                pbcoreDocument.remove(subjectLocator.getParent());
             } else {
-                subjectNode.setTextContent(subjectString);
+                pbcoreDocument.setText(subjectLocator, subjectString);
             }
-            String subjectString2 = subjects.getString(2);
+            String subjectString2 = record.getSubjectsReklamefilm().get(0)[1];
             if (subjectString2.isEmpty()) {
-                nodesToDelete.add(subjectNode2.getParentNode());
+                pbcoreDocument.remove(subject2Locator.getParent());
             } else {
-                subjectNode2.setTextContent(subjectString2);
+                pbcoreDocument.setText(subject2Locator, subjectString2);
             }
         } else {
-            nodesToDelete.add(subjectNode.getParentNode());
-            nodesToDelete.add(subjectNode2.getParentNode());
+            pbcoreDocument.remove(subjectLocator.getParent());
+            pbcoreDocument.remove(subject2Locator.getParent());
         }
-        subjectStatement.close();
 
         //subject keyword
-        PreparedStatement subjectKeywordStatement = c.prepareStatement(SQL_QUERY_SUBJECT_KEYWORD);
-        subjectKeywordStatement.setInt(1, adID);
-        subjectKeywordStatement.execute();
-        ResultSet subjectKeywords = subjectKeywordStatement.getResultSet();
-        Node subjectKeywordNode = XPATH_SELECTOR
-                .selectNode(pbcoreDocument, "/p:PBCoreDescriptionDocument/p:pbcoreSubject[1]/p:subject");
-        if (subjectKeywords.next()) {
-            String subjectKeywordString = subjectKeywords.getString(1);
+        if (!record.getSubjectKeywords().isEmpty()) {
+            String subjectKeywordString = record.getSubjectKeywords().get(0);
             if (subjectKeywordString.isEmpty()) {
-                nodesToDelete.add(subjectKeywordNode);
+                pbcoreDocument.remove(subjectKeywordLocator);
             } else {
-                subjectKeywordNode.setTextContent(subjectKeywordString);
+                pbcoreDocument.setText(subjectKeywordLocator, subjectKeywordString);
             }
         } else {
-            nodesToDelete.add(subjectKeywordNode);
+            pbcoreDocument.remove(subjectKeywordLocator);
         }
-        subjectKeywordStatement.close();
 
         //decade
-        PreparedStatement decadeStatement = c.prepareStatement(SQL_QUERY_DECADE);
-        decadeStatement.setInt(1, adID);
-        decadeStatement.execute();
-        ResultSet decades = decadeStatement.getResultSet();
-        Node decadeNode = XPATH_SELECTOR
-                .selectNode(pbcoreDocument, "/p:PBCoreDescriptionDocument/p:pbcoreCoverage[2]/p:coverage");
-        if (decades.next()) {
-            String decadeString = decades.getString(1);
+        if (!record.getDecades().isEmpty()) {
+            String decadeString = record.getDecades().get(0);
             if (decadeString.isEmpty()) {
-                nodesToDelete.add(decadeNode);
+                pbcoreDocument.remove(decadeLocator);
             } else {
-                decadeNode.setTextContent(decadeString);
+                pbcoreDocument.setText(decadeLocator, decadeString);
             }
         } else {
-            nodesToDelete.add(decadeNode);
+            pbcoreDocument.remove(decadeLocator);
         }
-        decadeStatement.close();
 
         //languages
-        PreparedStatement langStatement = c.prepareStatement(SQL_QUERY_LANGUAGE);
-        langStatement.setInt(1, adID);
-        langStatement.execute();
-        ResultSet languages = langStatement.getResultSet();
-        Node langNode = XPATH_SELECTOR
-                .selectNode(pbcoreDocument, "/p:PBCoreDescriptionDocument/p:pbcoreInstantiation/p:language");
-        String languageString = "";
-        while (languages.next()) {
-            if (!languageString.isEmpty()) {
-                languageString = languageString + ";";
+        StringBuilder languageString = new StringBuilder();
+        for (String language : record.getLanguages()) {
+            if (languageString.length() > 0) {
+                languageString.append(';');
             }
-            languageString = languageString + languages.getString(1);
+            languageString.append(language);
         }
-        if (languageString.isEmpty()) {
-            nodesToDelete.add(langNode);
+        if (languageString.length() == 0) {
+            pbcoreDocument.remove(languageLocator);
         } else {
-            langNode.setTextContent(languageString);
+            pbcoreDocument.setText(languageLocator, languageString.toString());
         }
-        langStatement.close();
 
         //creators & contributors
-        Node createTemplateNode = XPATH_SELECTOR.selectNode(pbcoreDocument, "/p:PBCoreDescriptionDocument/p:pbcoreCreator");
-        Node contributorTemplateNode = XPATH_SELECTOR.selectNode(pbcoreDocument, "/p:PBCoreDescriptionDocument/p:pbcoreContributor");
-        nodesToDelete.add(createTemplateNode);
-        nodesToDelete.add(contributorTemplateNode);
-
-        PreparedStatement creatorStatement = c.prepareStatement(SQL_QUERY_CREATOR);
-        creatorStatement.setInt(1, adID);
-        creatorStatement.execute();
-        ResultSet creators = creatorStatement.getResultSet();
-        while (creators.next()) {
-            addCreatorOrContributor(createTemplateNode, contributorTemplateNode, creators.getString(2),
-                                    creators.getString(1));
+        pbcoreDocument.remove(creatorTemplateLocator);
+        pbcoreDocument.remove(contributorTemplateLocator);
+        for (String[] creator : record.getCreators()) {
+            addCreatorOrContributor(pbcoreDocument, creator[1], creator[0], "CreatorRole.description");
         }
-        creatorStatement.close();
+        for (String[] contributor : record.getContributors()) {
+            addCreatorOrContributor(pbcoreDocument, contributor[1], contributor[0], "ContributorRole.description");
+        }
+        start = metrics.record(MappingMetrics.INJECT, start);
 
-        PreparedStatement contributorStatement = c.prepareStatement(SQL_QUERY_CONTRIBUTOR);
-        contributorStatement.setInt(1, adID);
-        contributorStatement.execute();
-        ResultSet contributors = contributorStatement.getResultSet();
-        while (contributors.next()) {
-            addCreatorOrContributor(createTemplateNode, contributorTemplateNode, contributors.getString(2),
-                                    contributors.getString(1));
+        ByteArrayOutputStream pbcore = new ByteArrayOutputStream();
+        pbcoreDocument.writeTo(pbcore);
+        byte[] bytes = pbcore.toByteArray();
+        start = metrics.record(MappingMetrics.SERIALISE, start);
+        if (validator != null) {
+            validator.validate(bytes);
+            metrics.record(MappingMetrics.VALIDATE, start);
         }
-        contributorStatement.close();
+        return bytes;
+    }
+
+    private String getFileName(BiografRecord record) throws MappingException {
+        if (record.getValue(19) == null) {
+            throw new MappingException("Advertisement.fileName", "No file name");
+        }
+        String month = null;
+        if (outputLayout == OutputLayout.DATE && record.getValue(9) != null) {
+            month = valueConverter.convertDate((Date) record.getValue(9)).substring(0, 7);
+        }
+        return outputLayout.getPath(valueConverter.convertFileName((String) record.getValue(19)), month);
+    }
 
-        //Nodes are deleted last, to avoid affecting the XPath paths.
-        for (Node node : nodesToDelete) {
-            node.getParentNode().removeChild(node);
-        }
-
-        //Write pbcore to template with file name
-        String filename = URLEncoder.encode(resultSet.getString(19).replace(".mpg", ".xml").replaceAll(Pattern.quote("+"), " "),  "UTF-8").replaceAll("\\+", "%20");
-        new FileOutputStream(new File(outputdir, filename)).write(
-                DOM.domToString(pbcoreDocument, true).getBytes());
-    }
-
-    private void addCreatorOrContributor(Node creatorTemplate, Node contributorTemplate, String name, String role) {
-        if (role.equals("Instruktør")) {
-            cloneNode(creatorTemplate, name, "Director", "p:creator", "p:creatorRole");
-        } else if (role.equals("Tegner")) {
-            cloneNode(creatorTemplate, name, "Illustrator", "p:creator", "p:creatorRole");
-        } else if (role.equals("Oversætter")) {
-            cloneNode(contributorTemplate, name, "Translator", "p:contributor", "p:contributorRole");
-        } else if (role.equals("Medvirkende")) {
-            cloneNode(contributorTemplate, name, "Actor", "p:contributor", "p:contributorRole");
-        } else if (role.equals("Tekniske arbejder")) {
-            cloneNode(contributorTemplate, name, "Technical Production", "p:contributor", "p:contributorRole");
-        } else if (role.equals("Bureau")) {
-            cloneNode(creatorTemplate, name, "Production Unit", "p:creator", "p:creatorRole");
-        } else if (role.equals("Producent")) {
-            cloneNode(creatorTemplate, name, "Producer", "p:creator", "p:creatorRole");
+    private void addCreatorOrContributor(PBCoreDocument pbcoreDocument, String name, String description, String field)
+            throws MappingException {
+        BiografRole role = BiografRole.forDescription(description);
+        if (role == null) {
+            throw new MappingException(field, new UnsupportedOperationException("Unsupported role: " + description));
+        }
+        if (role.isCreator()) {
+            addCreator(pbcoreDocument, name, role.getPBCoreRole());
         } else {
-            throw new UnsupportedOperationException("Unsupported role: " + role);
+            addContributor(pbcoreDocument, name, role.getPBCoreRole());
         }
     }
 
-    private void cloneNode(Node template, String role, String name, String rolePath, String creatorPath) {
-        Node creatorNode = template.cloneNode(true);
-        Node roleNode = XPATH_SELECTOR.selectNode(creatorNode, rolePath);
-        Node nameNode = XPATH_SELECTOR.selectNode(creatorNode, creatorPath);
-        roleNode.setTextContent(role);
-        nameNode.setTextContent(name);
-        template.getParentNode().insertBefore(creatorNode, template);
+    private void addCreator(PBCoreDocument pbcoreDocument, String name, String role) {
+        pbcoreDocument.addCopy(creatorTemplateLocator, creatorFieldLocators, name, role);
+    }
+
+    private void addContributor(PBCoreDocument pbcoreDocument, String name, String role) {
+        pbcoreDocument.addCopy(contributorTemplateLocator, contributorFieldLocators, name, role);
+    }
+
+    /**
+     * The mapping and writing stages of an export. Advertisements submitted by the reading threads are mapped by a
+     * pool of worker threads, and written in the order they were submitted by a writer thread.
+     */
+    private class MappingPipeline {
+        private final OutputSink outputSink;
+        private final ExecutorService mapperService;
+        private final ExecutorService writerService = Executors.newSingleThreadExecutor();
+        private final BlockingQueue<MappedRecord> mappedRecords;
+        private final Future<Void> writer;
+
+        /**
+         * Start the threads of a pipeline.
+         *
+         * @param outputSink The sink to write PBCore files to.
+         * @param mapperThreads The number of worker threads.
+         */
+        private MappingPipeline(OutputSink outputSink, int mapperThreads) {
+            this.outputSink = outputSink;
+            mapperService = Executors.newFixedThreadPool(mapperThreads);
+            mappedRecords = new ArrayBlockingQueue<MappedRecord>(mapperThreads * RECORDS_PER_THREAD);
+            writer = writerService.submit(new Callable<Void>() {
+                public Void call() throws InterruptedException {
+                    MappedRecord mappedRecord;
+                    while ((mappedRecord = mappedRecords.take()) != END) {
+                        if (mappedRecord.record == null) {
+                            // All advertisements of the page have been written
+                            saveResumeCheckpoint(mappedRecord.checkpointAdID);
+                        } else {
+                            writePBCoreFile(mappedRecord, MappingPipeline.this.outputSink);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+
+        /**
+         * Map an advertisement and queue it for writing, waiting while the queue is full.
+         */
+        private void submit(final BiografRecord record) throws SQLException {
+            put(new MappedRecord(record, mapperService.submit(new Callable<byte[]>() {
+                public byte[] call() throws Exception {
+                    return mapRecordToPBCore(record);
+                }
+            }), null));
+        }
+
+        /**
+         * Save an AdID in the resume checkpoint once the advertisements submitted so far are written.
+         */
+        private void checkpoint(int lastAdID) throws SQLException {
+            put(new MappedRecord(null, null, lastAdID));
+        }
+
+        /**
+         * Wait for all submitted advertisements to be written.
+         */
+        private void finish() throws SQLException {
+            put(END);
+            checkWriter();
+        }
+
+        /**
+         * Write the advertisements submitted before reading failed, so the pages they complete are checkpointed.
+         * Failures are reported rather than thrown, so they do not hide why reading failed.
+         */
+        private void finishAfterFailure() {
+            if (writer.isDone()) {
+                // Reading failed because the writer did
+                return;
+            }
+            try {
+                finish();
+            } catch (Exception e) {
+                //TODO logging
+                e.printStackTrace(System.err);
+            }
+        }
+
+        private void checkWriter() throws SQLException {
+            try {
+                writer.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while writing PBCore files", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new SQLException("Failed writing PBCore files", e.getCause());
+            }
+        }
+
+        private void put(MappedRecord mappedRecord) throws SQLException {
+            try {
+                while (!mappedRecords.offer(mappedRecord, 1, TimeUnit.SECONDS)) {
+                    if (writer.isDone()) {
+                        // The writer thread stopped early, report why
+                        checkWriter();
+                        throw new IllegalStateException("Writer thread stopped early");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while mapping advertisements", e);
+            }
+        }
+
+        /**
+         * Stop the threads of the pipeline, abandoning advertisements not yet written.
+         */
+        private void close() {
+            mapperService.shutdownNow();
+            writerService.shutdownNow();
+        }
     }
 }
@@ -2,36 +2,248 @@ package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
 import java.util.Properties;
 
 /**
  * Map data in a database with cinematic commercial metadata to PBCore files.
+ *
+ * With --extract, the data is written to a local snapshot file instead, which can then be mapped with --snapshot as
+ * often as needed without querying the database.
  */
 public class BiografPBCoreMapperUtil {
     public static void main(String[] args) throws Exception {
-        if (args.length < 1) {
-            System.err.println("Usage: java " + Tv2PBCoreMapperUtil.class.toString() + " <propertiesfile> [outputdir]");
+        CommandLineArguments arguments = null;
+        try {
+            arguments = new CommandLineArguments(args, new String[]{
+                    "engine", "schema", "delta", "resume", "extract", "snapshot", "retractions", "manifest", "index",
+                    "layout", "archive", "metrics", "progress", "rejects", "rerun"},
+                    new String[0]);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+        }
+        String conflict = arguments == null ? null : findConflict(arguments);
+        if (arguments == null || arguments.getPositionalArgument(0) == null || conflict != null) {
+            System.err.println("Usage: java " + BiografPBCoreMapperUtil.class.toString()
+                                       + " [--engine dom|streaming] [--schema <xsdfile>]"
+                                       + " [--delta <checkpointfile>] [--resume <checkpointfile>]"
+                                       + " [--extract <snapshotfile>] [--snapshot <snapshotfile>]"
+                                       + " [--retractions <file>]"
+                                       + " [--manifest <manifestfile>] [--index <indexfile>]"
+                                       + " [--layout flat|hash|date]"
+                                       + " [--archive <file.tar|file.tar.gz|file.zip>]"
+                                       + " [--metrics <jsonfile>] [--progress <seconds>] [--rejects <rejectsfile>]"
+                                       + " [--rerun <rejectsfile>] <propertiesfile> [outputdir]");
+            if (conflict != null) {
+                System.err.println(conflict);
+            }
             System.exit(1);
         }
 
         File outputdir;
-        if (args.length < 2 || args[1] == null || args[1].isEmpty()) {
+        if (arguments.getPositionalArgument(1) == null) {
             outputdir = new File(".");
         } else {
-            outputdir = new File(args[1]);
+            outputdir = new File(arguments.getPositionalArgument(1));
         }
         Properties properties = new Properties();
-        properties.load(new FileInputStream(args[0]));
-        outputdir.mkdirs();
-        // Load database driver
-        Class.forName(properties.getProperty("dk.statsbiblioteket.doms.ingest.reklamefilm.dbdriver"));
-        Connection c = DriverManager
-                .getConnection(properties.getProperty("dk.statsbiblioteket.doms.ingest.reklamefilm.dburl"),
-                               properties.getProperty("dk.statsbiblioteket.doms.ingest.reklamefilm.dbuser"),
-                               properties.getProperty("dk.statsbiblioteket.doms.ingest.reklamefilm.dbpass"));
-        c.setReadOnly(true);
-        new BiografPBCoreMapper().mapSQLDataToPBCoreFiles(outputdir, c);
+        properties.load(new FileInputStream(arguments.getPositionalArgument(0)));
+        // Load database driver and set up connections
+        ConnectionPool connectionPool = ConnectionPool.fromProperties(properties);
+        int batchSize = Integer.parseInt(properties.getProperty(
+                "dk.statsbiblioteket.doms.ingest.reklamefilm.batchsize",
+                Integer.toString(BiografPBCoreMapper.DEFAULT_BATCH_SIZE)));
+        int threads = Integer.parseInt(properties.getProperty(
+                "dk.statsbiblioteket.doms.ingest.reklamefilm.threads", "1"));
+        BiografPBCoreMapper biografPBCoreMapper = new BiografPBCoreMapper(batchSize, threads);
+        biografPBCoreMapper.setFetchSize(Integer.parseInt(properties.getProperty(
+                "dk.statsbiblioteket.doms.ingest.reklamefilm.fetchsize",
+                Integer.toString(BiografPBCoreMapper.DEFAULT_FETCH_SIZE))));
+        biografPBCoreMapper.setPageSize(Integer.parseInt(properties.getProperty(
+                "dk.statsbiblioteket.doms.ingest.reklamefilm.pagesize", "0")));
+        if (arguments.hasOption("engine")) {
+            biografPBCoreMapper.setOutputEngine(OutputEngine.valueOf(arguments.getOption("engine").toUpperCase()));
+        }
+        if (arguments.hasOption("schema")) {
+            biografPBCoreMapper.setValidator(new PBCoreValidator(new File(arguments.getOption("schema"))));
+        }
+        OutputIndex outputIndex = null;
+        if (arguments.hasOption("index")) {
+            outputIndex = new OutputIndex(new File(arguments.getOption("index")));
+            biografPBCoreMapper.setOutputIndex(outputIndex);
+        }
+        if (arguments.hasOption("layout")) {
+            biografPBCoreMapper.setOutputLayout(OutputLayout.valueOf(arguments.getOption("layout").toUpperCase()));
+        }
+        // In delta mode, only export advertisements modified since the previous run
+        ExportCheckpoint checkpoint = null;
+        if (arguments.hasOption("delta")) {
+            checkpoint = new ExportCheckpoint(new File(arguments.getOption("delta")));
+            biografPBCoreMapper.setModifiedSince(checkpoint.getLastModified());
+        }
+        // Save progress after each page of advertisements, and continue after the last page of an interrupted export
+        boolean resumed = false;
+        if (arguments.hasOption("resume")) {
+            File resumeFile = new File(arguments.getOption("resume"));
+            ExportCheckpoint resumeCheckpoint = checkpoint != null && resumeFile.equals(
+                    new File(arguments.getOption("delta"))) ? checkpoint : new ExportCheckpoint(resumeFile);
+            resumed = resumeCheckpoint.getLastAdID() != null;
+            if (resumed) {
+                System.err.println("Resuming after AdID " + resumeCheckpoint.getLastAdID());
+            }
+            biografPBCoreMapper.setResumeCheckpoint(resumeCheckpoint);
+        }
+        // Only a run of all advertisements shows which files are no longer exported
+        boolean fullRun = checkpoint == null && !arguments.hasOption("rerun") && !resumed;
+        // Only map the advertisements rejected by a previous run, which may be logged to the same file again
+        if (arguments.hasOption("rerun")) {
+            biografPBCoreMapper.setAdIDs(RejectLog.readIdentifiers(new File(arguments.getOption("rerun"))));
+        }
+        // Write the data to a snapshot instead of mapping it
+        if (arguments.hasOption("extract")) {
+            extractSnapshot(biografPBCoreMapper, connectionPool, new File(arguments.getOption("extract")));
+            return;
+        }
+        RejectLog rejectLog = null;
+        if (arguments.hasOption("rejects")) {
+            rejectLog = new RejectLog(new File(arguments.getOption("rejects")));
+            biografPBCoreMapper.setRejectLog(rejectLog);
+        }
+        // Write to an archive or the output directory, with a manifest only writing changed files
+        OutputSink outputSink;
+        if (arguments.hasOption("archive")) {
+            outputSink = ArchiveOutputSink.create(new File(arguments.getOption("archive")));
+        } else {
+            outputdir.mkdirs();
+            outputSink = new DirectoryOutputSink(outputdir);
+        }
+        OutputManifest manifest = null;
+        if (arguments.hasOption("manifest")) {
+            manifest = new OutputManifest(new File(arguments.getOption("manifest")), outputSink);
+            outputSink = manifest;
+        }
+        // Report progress on standard error, as standard output lists the changes
+        MappingMetrics metrics = biografPBCoreMapper.getMetrics();
+        if (arguments.hasOption("progress")) {
+            metrics.startProgressReports(System.err, arguments.getIntOption("progress", 60));
+        }
+        try {
+            if (arguments.hasOption("snapshot")) {
+                BiografSnapshotReader snapshotReader
+                        = new BiografSnapshotReader(new File(arguments.getOption("snapshot")));
+                try {
+                    biografPBCoreMapper.mapSnapshotToPBCoreFiles(snapshotReader, outputSink);
+                } finally {
+                    snapshotReader.close();
+                }
+            } else {
+                biografPBCoreMapper.mapSQLDataToPBCoreFiles(outputSink, connectionPool);
+            }
+            if (arguments.hasOption("retractions")) {
+                writeRetractedAdIDs(biografPBCoreMapper, connectionPool, new File(arguments.getOption("retractions")));
+            }
+        } finally {
+            metrics.stopProgressReports();
+            outputSink.close();
+            if (rejectLog != null) {
+                rejectLog.close();
+            }
+            connectionPool.close();
+        }
+        if (arguments.hasOption("metrics")) {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(arguments.getOption("metrics")), "UTF-8");
+            try {
+                metrics.writeJson(writer);
+            } finally {
+                writer.close();
+            }
+        }
+        // Report identifiers mapped to more than one file on standard error
+        if (outputIndex != null) {
+            if (fullRun) {
+                outputIndex.removeUnseen();
+            }
+            outputIndex.save();
+            outputIndex.writeDuplicates(new OutputStreamWriter(System.err, "UTF-8"));
+        }
+        // List the changes on standard output
+        if (manifest != null) {
+            if (fullRun) {
+                // Files of advertisements not exported in a delta run, a resumed run or a re-run are not removed
+                manifest.removeUnseen();
+            }
+            manifest.save();
+            manifest.writeChanges(new OutputStreamWriter(System.out, "UTF-8"));
+        }
+        if (checkpoint != null && biografPBCoreMapper.getLastModified() != null) {
+            if (metrics.getFailures() > 0) {
+                // Keep the checkpoint, so failed advertisements are exported again on the next run
+                System.err.println(metrics.getFailures() + " advertisements failed, checkpoint not updated");
+                System.exit(2);
+            }
+            checkpoint.setLastModified(biografPBCoreMapper.getLastModified());
+            checkpoint.save();
+        }
+    }
+
+    private static String findConflict(CommandLineArguments arguments) {
+        if (arguments.hasOption("rerun") && (arguments.hasOption("delta") || arguments.hasOption("resume"))) {
+            return "--rerun cannot be combined with --delta or --resume";
+        }
+        if ((arguments.hasOption("extract") || arguments.hasOption("snapshot")) && (arguments.hasOption("delta")
+                || arguments.hasOption("resume") || arguments.hasOption("retractions"))) {
+            return "--extract and --snapshot cannot be combined with --delta, --resume or --retractions";
+        }
+        if (arguments.hasOption("extract") && (arguments.hasOption("snapshot") || arguments.hasOption("rerun"))) {
+            return "--extract cannot be combined with --snapshot or --rerun";
+        }
+        return null;
+    }
+
+    private static void extractSnapshot(BiografPBCoreMapper biografPBCoreMapper, ConnectionPool connectionPool,
+                                        File file) throws SQLException, IOException {
+        BiografSnapshotWriter snapshotWriter = new BiografSnapshotWriter(file);
+        boolean extracted = false;
+        try {
+            Connection connection = connectionPool.getConnection();
+            try {
+                biografPBCoreMapper.extractSnapshot(snapshotWriter, connection);
+                extracted = true;
+            } finally {
+                connectionPool.releaseConnection(connection);
+            }
+        } finally {
+            connectionPool.close();
+            snapshotWriter.close();
+            if (!extracted) {
+                // An incomplete snapshot would be taken for all advertisements
+                file.delete();
+            }
+        }
+    }
+
+    private static void writeRetractedAdIDs(BiografPBCoreMapper biografPBCoreMapper, ConnectionPool connectionPool,
+                                            File file) throws SQLException, IOException {
+        List<Integer> adIDs;
+        Connection connection = connectionPool.getConnection();
+        try {
+            adIDs = biografPBCoreMapper.findRetractedAdIDs(connection);
+        } finally {
+            connectionPool.releaseConnection(connection);
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            for (Integer adID : adIDs) {
+                writer.write(adID + "\n");
+            }
+        } finally {
+            writer.close();
+        }
     }
 }
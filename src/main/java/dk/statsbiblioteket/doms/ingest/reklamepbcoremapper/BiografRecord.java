@@ -0,0 +1,104 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The data of one biografreklamefilm: the columns read from its Advertisement row, and the values of its child
+ * relations (subjects, keywords, decades, languages, creators and contributors).
+ *
+ * Column values are indexed by their result index in the Advertisement query, starting from 1.
+ */
+public class BiografRecord {
+    private final int adID;
+    private final Object[] values;
+    private final List<String[]> subjectsReklamefilm = new ArrayList<String[]>();
+    private final List<String> subjectKeywords = new ArrayList<String>();
+    private final List<String> decades = new ArrayList<String>();
+    private final List<String> languages = new ArrayList<String>();
+    private final List<String[]> creators = new ArrayList<String[]>();
+    private final List<String[]> contributors = new ArrayList<String[]>();
+
+    /**
+     * Initialise a record.
+     *
+     * @param adID The AdID of the advertisement.
+     * @param columnCount The number of columns in the Advertisement query.
+     */
+    public BiografRecord(int adID, int columnCount) {
+        this.adID = adID;
+        this.values = new Object[columnCount + 1];
+    }
+
+    public int getAdID() {
+        return adID;
+    }
+
+    /**
+     * Get a column value.
+     *
+     * @param resultindex Result index of the column, starting from 1.
+     * @return The value, which may be null.
+     */
+    public Object getValue(int resultindex) {
+        return values[resultindex];
+    }
+
+    /**
+     * Set a column value.
+     *
+     * @param resultindex Result index of the column, starting from 1.
+     * @param value The value, which may be null.
+     */
+    public void setValue(int resultindex, Object value) {
+        values[resultindex] = value;
+    }
+
+    /**
+     * Get the number of columns in the Advertisement query.
+     *
+     * @return The number of columns.
+     */
+    public int getColumnCount() {
+        return values.length - 1;
+    }
+
+    /**
+     * Get the reklamefilm subjects, in database order.
+     *
+     * @return List of subject pairs: the child subject followed by its parent subject.
+     */
+    public List<String[]> getSubjectsReklamefilm() {
+        return subjectsReklamefilm;
+    }
+
+    public List<String> getSubjectKeywords() {
+        return subjectKeywords;
+    }
+
+    public List<String> getDecades() {
+        return decades;
+    }
+
+    public List<String> getLanguages() {
+        return languages;
+    }
+
+    /**
+     * Get the creators, in database order.
+     *
+     * @return List of creator pairs: the role description followed by the creator name.
+     */
+    public List<String[]> getCreators() {
+        return creators;
+    }
+
+    /**
+     * Get the contributors, in database order.
+     *
+     * @return List of contributor pairs: the role description followed by the contributor name.
+     */
+    public List<String[]> getContributors() {
+        return contributors;
+    }
+}
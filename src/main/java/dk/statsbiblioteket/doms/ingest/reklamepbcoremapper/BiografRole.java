@@ -0,0 +1,74 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The roles of creators and contributors in the Biograf database, and the PBCore roles they map to.
+ *
+ * Whether a person is a PBCore creator or contributor is given by the role, not by the table the person is read from.
+ */
+public enum BiografRole {
+    DIRECTOR("Instruktør", "Director", true),
+    ILLUSTRATOR("Tegner", "Illustrator", true),
+    PRODUCTION_UNIT("Bureau", "Production Unit", true),
+    PRODUCER("Producent", "Producer", true),
+    TRANSLATOR("Oversætter", "Translator", false),
+    ACTOR("Medvirkende", "Actor", false),
+    TECHNICAL_PRODUCTION("Tekniske arbejder", "Technical Production", false);
+
+    private static final Map<String, BiografRole> ROLES = new HashMap<String, BiografRole>();
+
+    static {
+        for (BiografRole role : values()) {
+            ROLES.put(role.description, role);
+        }
+    }
+
+    private final String description;
+    private final String pbcoreRole;
+    private final boolean creator;
+
+    private BiografRole(String description, String pbcoreRole, boolean creator) {
+        this.description = description;
+        this.pbcoreRole = pbcoreRole;
+        this.creator = creator;
+    }
+
+    /**
+     * Get the role with the given description in the Biograf database.
+     *
+     * @param description The description of the role, such as Instruktør.
+     * @return The role, or null if the description is unknown.
+     */
+    public static BiografRole forDescription(String description) {
+        return ROLES.get(description);
+    }
+
+    /**
+     * Get the description of the role in the Biograf database.
+     *
+     * @return The description, such as Instruktør.
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Get the PBCore role.
+     *
+     * @return The PBCore creator or contributor role, such as Director.
+     */
+    public String getPBCoreRole() {
+        return pbcoreRole;
+    }
+
+    /**
+     * Whether people with this role are PBCore creators rather than contributors.
+     *
+     * @return True for creators, false for contributors.
+     */
+    public boolean isCreator() {
+        return creator;
+    }
+}
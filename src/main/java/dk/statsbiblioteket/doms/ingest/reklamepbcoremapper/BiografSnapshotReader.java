@@ -0,0 +1,188 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Read the Biograf records of a snapshot file written by {@link BiografSnapshotWriter}, one record at a time.
+ */
+public class BiografSnapshotReader implements Closeable {
+    private final File file;
+    private final DataInputStream input;
+    private final List<String> dictionary = new ArrayList<String>();
+    private boolean ended;
+
+    /**
+     * Open a snapshot file.
+     *
+     * @param file The snapshot file.
+     * @throws IOException On trouble reading the file, or if it is not a snapshot of a supported version.
+     */
+    public BiografSnapshotReader(File file) throws IOException {
+        this.file = file;
+        input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (input.readInt() != BiografSnapshotWriter.MAGIC) {
+                throw new IOException("Not a Biograf snapshot: " + file);
+            }
+            int version = input.readInt();
+            if (version != BiografSnapshotWriter.VERSION) {
+                throw new IOException("Unsupported version " + version + " of Biograf snapshot " + file);
+            }
+        } catch (IOException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read the next record.
+     *
+     * @return The record, or null at the end of the snapshot.
+     * @throws IOException On trouble reading the file, or if the snapshot was not completely written.
+     */
+    public BiografRecord readRecord() throws IOException {
+        try {
+            while (!ended) {
+                int type = input.read();
+                if (type == -1) {
+                    throw new EOFException();
+                }
+                byte[] content = new byte[(int) readVarint(input)];
+                input.readFully(content);
+                switch (type) {
+                    case BiografSnapshotWriter.FRAME_END:
+                        ended = true;
+                        break;
+                    case BiografSnapshotWriter.FRAME_DICTIONARY:
+                        readDictionary(new ByteArrayInputStream(content));
+                        break;
+                    case BiografSnapshotWriter.FRAME_RECORD:
+                        return readRecord(new ByteArrayInputStream(content));
+                    default:
+                        // Frames added by later versions of the format are skipped
+                        break;
+                }
+            }
+            return null;
+        } catch (EOFException e) {
+            throw new IOException("Biograf snapshot " + file + " was not completely written", e);
+        }
+    }
+
+    /**
+     * Close the file.
+     *
+     * @throws IOException On trouble closing the file.
+     */
+    public void close() throws IOException {
+        input.close();
+    }
+
+    private void readDictionary(InputStream content) throws IOException {
+        long count = readVarint(content);
+        for (long i = 0; i < count; i++) {
+            dictionary.add(readUtf8(content));
+        }
+    }
+
+    private BiografRecord readRecord(InputStream content) throws IOException {
+        int adID = (int) unzigzag(readVarint(content));
+        int columnCount = (int) readVarint(content);
+        BiografRecord record = new BiografRecord(adID, columnCount);
+        for (int resultindex = 1; resultindex <= columnCount; resultindex++) {
+            record.setValue(resultindex, readValue(content));
+        }
+        readStringArrays(content, record.getSubjectsReklamefilm());
+        readStrings(content, record.getSubjectKeywords());
+        readStrings(content, record.getDecades());
+        readStrings(content, record.getLanguages());
+        readStringArrays(content, record.getCreators());
+        readStringArrays(content, record.getContributors());
+        return record;
+    }
+
+    private Object readValue(InputStream content) throws IOException {
+        int type = content.read();
+        switch (type) {
+            case BiografSnapshotWriter.VALUE_NULL:
+                return null;
+            case BiografSnapshotWriter.VALUE_STRING:
+                return readUtf8(content);
+            case BiografSnapshotWriter.VALUE_DICTIONARY_STRING:
+                long index = readVarint(content);
+                if (index >= dictionary.size()) {
+                    throw new IOException("Unknown dictionary string " + index + " in Biograf snapshot " + file);
+                }
+                return dictionary.get((int) index);
+            case BiografSnapshotWriter.VALUE_INT:
+                return (int) unzigzag(readVarint(content));
+            case BiografSnapshotWriter.VALUE_DATE:
+                return new java.sql.Date(unzigzag(readVarint(content)));
+            case -1:
+                throw new EOFException();
+            default:
+                throw new IOException("Unknown value type " + type + " in Biograf snapshot " + file);
+        }
+    }
+
+    private String readString(InputStream content) throws IOException {
+        Object value = readValue(content);
+        if (value != null && !(value instanceof String)) {
+            throw new IOException("Expected a string in Biograf snapshot " + file + ", was " + value);
+        }
+        return (String) value;
+    }
+
+    private void readStrings(InputStream content, List<String> strings) throws IOException {
+        long count = readVarint(content);
+        for (long i = 0; i < count; i++) {
+            strings.add(readString(content));
+        }
+    }
+
+    private void readStringArrays(InputStream content, List<String[]> arrays) throws IOException {
+        long count = readVarint(content);
+        for (long i = 0; i < count; i++) {
+            String[] array = new String[(int) readVarint(content)];
+            for (int j = 0; j < array.length; j++) {
+                array[j] = readString(content);
+            }
+            arrays.add(array);
+        }
+    }
+
+    private static String readUtf8(InputStream content) throws IOException {
+        byte[] bytes = new byte[(int) readVarint(content)];
+        new DataInputStream(content).readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long readVarint(InputStream inputStream) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = inputStream.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
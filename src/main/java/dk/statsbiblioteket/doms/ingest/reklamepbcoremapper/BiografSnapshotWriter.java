@@ -0,0 +1,207 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write Biograf records to a local snapshot file, so they can be mapped again without querying the database. The
+ * snapshot is read with {@link BiografSnapshotReader}.
+ *
+ * The file starts with the magic number {@link #MAGIC} and the format {@link #VERSION}, followed by frames. Each
+ * frame is a type byte, the length of its content as a varint, and the content, so frames can be read one at a time
+ * and frames of unknown types skipped. The last frame is an {@link #FRAME_END} frame without content; a snapshot
+ * without it was not completely written.
+ *
+ * Strings repeated between records, such as subjects, languages and names, are dictionary encoded: the first time
+ * such a string is written, it is added to the dictionary in a {@link #FRAME_DICTIONARY} frame before the record, and
+ * records refer to it by its index in the dictionary. Numbers are written as varints, with negative numbers zigzag
+ * encoded.
+ */
+public class BiografSnapshotWriter implements Closeable {
+    /** The magic number at the start of a snapshot file, "BIOS". */
+    static final int MAGIC = 0x42494f53;
+
+    /** The version of the snapshot format. */
+    static final int VERSION = 1;
+
+    /** The last frame of a snapshot. */
+    static final int FRAME_END = 0;
+
+    /** Strings added to the dictionary: the number of strings, and each string as a length and utf-8 bytes. */
+    static final int FRAME_DICTIONARY = 1;
+
+    /**
+     * A record: the AdID, the number of columns, a value per column, and the lists of subjects, keywords, decades,
+     * languages, creators and contributors, each as the number of entries followed by the entries.
+     */
+    static final int FRAME_RECORD = 2;
+
+    static final int VALUE_NULL = 0;
+    static final int VALUE_STRING = 1;
+    static final int VALUE_DICTIONARY_STRING = 2;
+    static final int VALUE_INT = 3;
+    static final int VALUE_DATE = 4;
+
+    /** Longest column value added to the dictionary. Longer values, such as descriptions, are rarely repeated. */
+    private static final int MAX_DICTIONARY_COLUMN_LENGTH = 32;
+
+    /** Largest number of strings in the dictionary, to bound the memory used when writing and reading. */
+    static final int MAX_DICTIONARY_SIZE = 1 << 20;
+
+    private final DataOutputStream output;
+    private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+    private final List<String> newStrings = new ArrayList<String>();
+    private final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+    private boolean closed;
+
+    /**
+     * Create a snapshot file.
+     *
+     * @param file The snapshot file. An existing file is replaced.
+     * @throws IOException On trouble creating the file.
+     */
+    public BiografSnapshotWriter(File file) throws IOException {
+        output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+    }
+
+    /**
+     * Write a record.
+     *
+     * @param record The record, with the values of its child relations. Column values must be strings, integers or
+     * dates.
+     * @throws IOException On trouble writing the file.
+     */
+    public synchronized void write(BiografRecord record) throws IOException {
+        frame.reset();
+        writeVarint(frame, zigzag(record.getAdID()));
+        writeVarint(frame, record.getColumnCount());
+        for (int resultindex = 1; resultindex <= record.getColumnCount(); resultindex++) {
+            writeValue(record.getValue(resultindex));
+        }
+        writeStringArrays(record.getSubjectsReklamefilm());
+        writeStrings(record.getSubjectKeywords());
+        writeStrings(record.getDecades());
+        writeStrings(record.getLanguages());
+        writeStringArrays(record.getCreators());
+        writeStringArrays(record.getContributors());
+        if (!newStrings.isEmpty()) {
+            ByteArrayOutputStream dictionaryFrame = new ByteArrayOutputStream();
+            writeVarint(dictionaryFrame, newStrings.size());
+            for (String string : newStrings) {
+                byte[] bytes = string.getBytes("UTF-8");
+                writeVarint(dictionaryFrame, bytes.length);
+                dictionaryFrame.write(bytes);
+            }
+            writeFrame(FRAME_DICTIONARY, dictionaryFrame);
+            newStrings.clear();
+        }
+        writeFrame(FRAME_RECORD, frame);
+    }
+
+    /**
+     * Write the end of the snapshot, and close the file.
+     *
+     * @throws IOException On trouble writing the file.
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            output.write(FRAME_END);
+            writeVarint(output, 0);
+        } finally {
+            output.close();
+        }
+    }
+
+    private void writeFrame(int type, ByteArrayOutputStream content) throws IOException {
+        output.write(type);
+        writeVarint(output, content.size());
+        content.writeTo(output);
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if (value == null) {
+            frame.write(VALUE_NULL);
+        } else if (value instanceof String) {
+            String string = (String) value;
+            writeString(string, string.length() <= MAX_DICTIONARY_COLUMN_LENGTH);
+        } else if (value instanceof Integer) {
+            frame.write(VALUE_INT);
+            writeVarint(frame, zigzag((Integer) value));
+        } else if (value instanceof Date) {
+            frame.write(VALUE_DATE);
+            writeVarint(frame, zigzag(((Date) value).getTime()));
+        } else {
+            throw new IllegalArgumentException("Unsupported value type " + value.getClass().getName());
+        }
+    }
+
+    private void writeStrings(List<String> strings) throws IOException {
+        writeVarint(frame, strings.size());
+        for (String string : strings) {
+            writeString(string, true);
+        }
+    }
+
+    private void writeStringArrays(List<String[]> arrays) throws IOException {
+        writeVarint(frame, arrays.size());
+        for (String[] array : arrays) {
+            writeVarint(frame, array.length);
+            for (String string : array) {
+                writeString(string, true);
+            }
+        }
+    }
+
+    private void writeString(String string, boolean useDictionary) throws IOException {
+        if (string == null) {
+            frame.write(VALUE_NULL);
+            return;
+        }
+        if (useDictionary) {
+            Integer index = dictionary.get(string);
+            if (index == null && dictionary.size() < MAX_DICTIONARY_SIZE) {
+                index = dictionary.size();
+                dictionary.put(string, index);
+                newStrings.add(string);
+            }
+            if (index != null) {
+                frame.write(VALUE_DICTIONARY_STRING);
+                writeVarint(frame, index);
+                return;
+            }
+        }
+        byte[] bytes = string.getBytes("UTF-8");
+        frame.write(VALUE_STRING);
+        writeVarint(frame, bytes.length);
+        frame.write(bytes);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static void writeVarint(OutputStream outputStream, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            outputStream.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        outputStream.write((int) value);
+    }
+}
@@ -0,0 +1,113 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line arguments for the mapper utilities: options of the form "--name value" or "--flag", mixed with
+ * positional arguments.
+ */
+final class CommandLineArguments {
+    private final Map<String, String> options = new HashMap<String, String>();
+    private final List<String> positionalArguments = new ArrayList<String>();
+
+    /**
+     * Parse command line arguments.
+     *
+     * @param args The command line arguments.
+     * @param valueOptions Names of the options that take a value.
+     * @param flagOptions Names of the options that take no value.
+     * @throws IllegalArgumentException On unknown options, or options missing their value.
+     */
+    CommandLineArguments(String[] args, String[] valueOptions, String[] flagOptions) {
+        List<String> valueOptionList = Arrays.asList(valueOptions);
+        List<String> flagOptionList = Arrays.asList(flagOptions);
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] == null || !args[i].startsWith("--")) {
+                positionalArguments.add(args[i]);
+                continue;
+            }
+            String name = args[i].substring(2);
+            if (flagOptionList.contains(name)) {
+                options.put(name, Boolean.TRUE.toString());
+            } else if (valueOptionList.contains(name)) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for option --" + name);
+                }
+                options.put(name, args[++i]);
+            } else {
+                throw new IllegalArgumentException("Unknown option --" + name);
+            }
+        }
+    }
+
+    /**
+     * Get a positional argument.
+     *
+     * @param index Index of the argument, ignoring options.
+     * @return The argument, or null if it was not given or empty.
+     */
+    String getPositionalArgument(int index) {
+        if (index >= positionalArguments.size()) {
+            return null;
+        }
+        String argument = positionalArguments.get(index);
+        return argument == null || argument.isEmpty() ? null : argument;
+    }
+
+    /**
+     * Get the number of positional arguments.
+     *
+     * @return The number of arguments, ignoring options.
+     */
+    int getPositionalArgumentCount() {
+        return positionalArguments.size();
+    }
+
+    /**
+     * Check whether an option was given.
+     *
+     * @param name Name of the option, without leading dashes.
+     * @return Whether the option was given.
+     */
+    boolean hasOption(String name) {
+        return options.containsKey(name);
+    }
+
+    /**
+     * Get the value of an option.
+     *
+     * @param name Name of the option, without leading dashes.
+     * @return The value, or null if the option was not given.
+     */
+    String getOption(String name) {
+        return options.get(name);
+    }
+
+    /**
+     * Get the value of a numeric option.
+     *
+     * @param name Name of the option, without leading dashes.
+     * @param defaultValue Value to use if the option was not given.
+     * @return The value of the option.
+     * @throws IllegalArgumentException If the value is not a positive number.
+     */
+    int getIntOption(String name, int defaultValue) {
+        String value = options.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int number = Integer.parseInt(value);
+            if (number < 1) {
+                throw new IllegalArgumentException("Option --" + name + " must be positive, was " + value);
+            }
+            return number;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option --" + name + " must be a number, was " + value, e);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A small, bounded pool of read only database connections. Connections are opened on demand, up to the size of the
+ * pool. When all connections are in use, callers wait for one to be released.
+ */
+public class ConnectionPool {
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int size;
+    private final List<Connection> connections = new ArrayList<Connection>();
+    private final BlockingQueue<Connection> idleConnections = new LinkedBlockingQueue<Connection>();
+
+    /**
+     * Initialise a connection pool.
+     *
+     * @param url JDBC URL of the database.
+     * @param user Database user.
+     * @param password Database password.
+     * @param size Maximum number of connections in the pool.
+     */
+    public ConnectionPool(String url, String user, String password, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Pool size must be positive, was " + size);
+        }
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.size = size;
+    }
+
+    /**
+     * Initialise a connection pool from the reklamefilm properties. The database driver is loaded, and the pool size
+     * is read from dk.statsbiblioteket.doms.ingest.reklamefilm.poolsize, defaulting to a single connection.
+     *
+     * @param properties The reklamefilm properties.
+     * @return A connection pool.
+     * @throws ClassNotFoundException If the database driver is not found.
+     */
+    public static ConnectionPool fromProperties(Properties properties) throws ClassNotFoundException {
+        Class.forName(properties.getProperty("dk.statsbiblioteket.doms.ingest.reklamefilm.dbdriver"));
+        return new ConnectionPool(properties.getProperty("dk.statsbiblioteket.doms.ingest.reklamefilm.dburl"),
+                                  properties.getProperty("dk.statsbiblioteket.doms.ingest.reklamefilm.dbuser"),
+                                  properties.getProperty("dk.statsbiblioteket.doms.ingest.reklamefilm.dbpass"),
+                                  Integer.parseInt(properties.getProperty(
+                                          "dk.statsbiblioteket.doms.ingest.reklamefilm.poolsize", "1")));
+    }
+
+    /**
+     * Get the maximum number of connections in the pool.
+     *
+     * @return The pool size.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Get a connection from the pool, waiting for one to be released if all connections are in use. The connection
+     * must be returned with {@link #releaseConnection(Connection)}.
+     *
+     * @return A read only connection.
+     * @throws SQLException On trouble opening a new connection, or if interrupted while waiting.
+     */
+    public Connection getConnection() throws SQLException {
+        Connection connection = idleConnections.poll();
+        if (connection != null) {
+            return connection;
+        }
+        synchronized (this) {
+            if (connections.size() < size) {
+                connection = DriverManager.getConnection(url, user, password);
+                connection.setReadOnly(true);
+                connections.add(connection);
+                return connection;
+            }
+        }
+        try {
+            return idleConnections.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+    }
+
+    /**
+     * Return a connection to the pool.
+     *
+     * @param connection A connection obtained with {@link #getConnection()}.
+     */
+    public void releaseConnection(Connection connection) {
+        idleConnections.add(connection);
+    }
+
+    /**
+     * Close all connections in the pool.
+     */
+    public synchronized void close() {
+        for (Connection connection : connections) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                //TODO logging
+                e.printStackTrace(System.err);
+            }
+        }
+        connections.clear();
+        idleConnections.clear();
+    }
+}
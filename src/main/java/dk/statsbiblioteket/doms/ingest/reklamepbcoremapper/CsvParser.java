@@ -1,64 +1,160 @@
 package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.StringTokenizer;
 
 /**
- * Parse a line from CSV format
+ * Parse CSV data, one row at a time.
+ *
+ * Cells are deliminated by {@link #CELL_DELIMINATOR}, rows are deliminated by {@link #ROW_DELIMINATOR},
+ * cell contents can be quoted with {@link #QUOTE}. Each {@link #QUOTE} starts or ends quoting and is not part of the
+ * cell, so two {@link #QUOTE} in a row inside a quoted cell are dropped, as they always have been.
+ *
+ * The parser is a character level state machine reading directly from a {@link Reader} through its own buffer, so
+ * only the row currently being parsed is kept in memory.
  */
-public final class CsvParser {
-    private static final String CELL_DELIMINATOR = ",";
-    private static final String ROW_DELIMINATOR = "\n";
-    private static final String QUOTE = "\"";
-    private static final String DELIMINATORS = CELL_DELIMINATOR + ROW_DELIMINATOR + QUOTE;
+public final class CsvParser implements CsvRowReader {
+    private static final char CELL_DELIMINATOR = ',';
+    private static final char ROW_DELIMINATOR = '\n';
+    private static final char QUOTE = '"';
+    private static final int BUFFER_SIZE = 64 * 1024;
 
     private enum ParseState {NORMAL, QUOTED_STRING}
 
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private final StringBuilder currentCell = new StringBuilder();
+    private int position;
+    private int limit;
+    private int lineNumber;
+    private int rowLineNumber;
+
+    /**
+     * Initialise a parser reading CSV data from the given reader. The reader is buffered internally.
+     *
+     * @param reader The reader to read CSV data from.
+     */
+    public CsvParser(Reader reader) {
+        this(reader, 0);
+    }
+
+    /**
+     * Initialise a parser reading CSV data that starts after the given number of lines, such as a chunk of a file.
+     *
+     * @param reader The reader to read CSV data from.
+     * @param lineNumber The number of lines before the CSV data, counted by line breaks.
+     */
+    CsvParser(Reader reader, int lineNumber) {
+        this.reader = reader;
+        this.lineNumber = lineNumber;
+    }
+
     /**
      * Read a CSV file into a list of rows consisting of a list of cells consisting of strings.
-     * Cells are deliminated by {@link #CELL_DELIMINATOR}, rows are deliminated by {@link #ROW_DELIMINATOR},
-     * cell contents can be quoted with {@link #QUOTE}, two {@link #QUOTE} in a row are interpreted as a literal quote.
      *
      * @param csvdata CSV formatted data.
      * @return A list of rows consisting of a list of cells consisting of strings.
      */
     public static List<List<String>> readCsvData(String csvdata) {
-        StringTokenizer tokenizer = new StringTokenizer(csvdata, DELIMINATORS, true);
-        ParseState parseState = ParseState.NORMAL;
+        CsvParser csvParser = new CsvParser(new StringReader(csvdata));
         List<List<String>> result = new ArrayList<List<String>>();
+        try {
+            List<String> row;
+            while ((row = csvParser.readRow()) != null) {
+                result.add(row);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unexpected I/O error reading from string", e);
+        }
+        return result;
+    }
+
+    /**
+     * Read the next row.
+     *
+     * @return The cells of the next row, or null if there are no more rows.
+     * @throws IOException On trouble reading from the underlying reader.
+     */
+    public List<String> readRow() throws IOException {
+        ParseState parseState = ParseState.NORMAL;
         List<String> currentRow = new ArrayList<String>();
-        String currentCell = "";
-        String next;
-        while (tokenizer.hasMoreElements()) {
-            next = tokenizer.nextToken();
-            if (next.equals(QUOTE)) {
-                switch(parseState) {
-                    case NORMAL:
-                        parseState = ParseState.QUOTED_STRING;
-                        break;
-                    case QUOTED_STRING:
+        rowLineNumber = lineNumber + 1;
+        int next;
+        while ((next = read()) != -1) {
+            char c = (char) next;
+            if (c == ROW_DELIMINATOR) {
+                lineNumber++;
+            }
+            switch (parseState) {
+                case QUOTED_STRING:
+                    if (c != QUOTE) {
+                        currentCell.append(c);
+                    } else {
                         parseState = ParseState.NORMAL;
-                        break;
-                }
-            } else if (next.equals(CELL_DELIMINATOR) && parseState == ParseState.NORMAL) {
-                currentRow.add(currentCell);
-                currentCell = "";
-            } else if (next.equals(ROW_DELIMINATOR) && parseState == ParseState.NORMAL) {
-                currentRow.add(currentCell);
-                currentCell = "";
-                result.add(currentRow);
-                currentRow = new ArrayList<String>();
-            } else {
-                currentCell += next;
+                    }
+                    break;
+                case NORMAL:
+                    if (c == QUOTE) {
+                        parseState = ParseState.QUOTED_STRING;
+                    } else if (c == CELL_DELIMINATOR) {
+                        currentRow.add(takeCurrentCell());
+                    } else if (c == ROW_DELIMINATOR) {
+                        currentRow.add(takeCurrentCell());
+                        return currentRow;
+                    } else {
+                        currentCell.append(c);
+                    }
+                    break;
             }
         }
-        if (!currentCell.isEmpty()) {
-            currentRow.add(currentCell);
+        if (currentCell.length() > 0) {
+            currentRow.add(takeCurrentCell());
         }
-        if (!currentRow.isEmpty()) {
-            result.add(currentRow);
+        return currentRow.isEmpty() ? null : currentRow;
+    }
+
+    /**
+     * Get the line number the row last read starts on. A row spans several lines if a quoted cell contains line
+     * breaks.
+     *
+     * @return The 1-based line number of the row last read, or 0 if no row has been read.
+     */
+    public int getLineNumber() {
+        return rowLineNumber;
+    }
+
+    /**
+     * Close the underlying reader.
+     *
+     * @throws IOException On trouble closing the reader.
+     */
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private String takeCurrentCell() {
+        String cell = currentCell.toString();
+        currentCell.setLength(0);
+        return cell;
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
         }
-        return result;
+        return buffer[position++];
+    }
+
+    private boolean fill() throws IOException {
+        int read;
+        do {
+            read = reader.read(buffer, 0, buffer.length);
+        } while (read == 0);
+        position = 0;
+        limit = Math.max(read, 0);
+        return read > 0;
     }
 }
@@ -0,0 +1,26 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Source of CSV rows, read one row at a time in the order of the CSV data.
+ */
+public interface CsvRowReader extends Closeable {
+    /**
+     * Read the next row.
+     *
+     * @return The cells of the next row, or null if there are no more rows.
+     * @throws IOException On trouble reading the CSV data.
+     */
+    List<String> readRow() throws IOException;
+
+    /**
+     * Get the line number the row last read starts on. A row spans several lines if a quoted cell contains line
+     * breaks.
+     *
+     * @return The 1-based line number of the row last read, or 0 if no row has been read.
+     */
+    int getLineNumber();
+}
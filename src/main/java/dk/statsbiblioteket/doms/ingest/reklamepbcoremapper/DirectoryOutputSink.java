@@ -0,0 +1,68 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Write each file to a directory.
+ *
+ * Files are written to a temporary file in the directory of the file, and renamed when complete, so an interrupted
+ * run never leaves a partially written file under the name of a PBCore file. Subdirectories in file names are
+ * created as needed.
+ */
+public class DirectoryOutputSink implements OutputSink {
+    private static final String TEMPORARY_PREFIX = ".pbcore";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final File outputdir;
+
+    /**
+     * Initialise the sink.
+     *
+     * @param outputdir The directory to write files to. It must exist.
+     */
+    public DirectoryOutputSink(File outputdir) {
+        this.outputdir = outputdir;
+    }
+
+    public void write(String name, byte[] content, String checksum) throws IOException {
+        File file = new File(outputdir, name);
+        File directory = file.getParentFile();
+        // Another thread may create the directory at the same time, so check again if it could not be created
+        if (!directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        File temporaryFile = File.createTempFile(TEMPORARY_PREFIX, TEMPORARY_SUFFIX, directory);
+        boolean renamed = false;
+        try {
+            // The content is written in one call, so there is nothing to gain from buffering
+            OutputStream outputStream = new FileOutputStream(temporaryFile);
+            try {
+                outputStream.write(content);
+            } finally {
+                outputStream.close();
+            }
+            // Renaming onto an existing file fails on some platforms, where the old file must be deleted first
+            renamed = temporaryFile.renameTo(file) || (file.delete() && temporaryFile.renameTo(file));
+            if (!renamed) {
+                throw new IOException("Unable to rename " + temporaryFile + " to " + file);
+            }
+        } finally {
+            if (!renamed) {
+                temporaryFile.delete();
+            }
+        }
+    }
+
+    public boolean exists(String name) {
+        return new File(outputdir, name).isFile();
+    }
+
+    public void retain(String name) {
+    }
+
+    public void close() {
+    }
+}
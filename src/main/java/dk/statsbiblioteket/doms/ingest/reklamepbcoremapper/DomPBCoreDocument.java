@@ -0,0 +1,78 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import dk.statsbiblioteket.util.xml.DOM;
+
+import javax.xml.transform.TransformerException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A PBCore document built on a copy of the template DOM.
+ */
+public class DomPBCoreDocument implements PBCoreDocument {
+    private final Document document;
+    private final List<Node> nodesToInsert = new ArrayList<Node>();
+    private final List<Node> insertBeforeNodes = new ArrayList<Node>();
+    private final List<Node> nodesToDelete = new ArrayList<Node>();
+    private boolean applied;
+
+    /**
+     * Initialise the document.
+     *
+     * @param document A copy of the template document, which will be modified.
+     */
+    public DomPBCoreDocument(Document document) {
+        this.document = document;
+    }
+
+    public void setText(NodeLocator locator, String value) {
+        locator.locate(document).setTextContent(value);
+    }
+
+    public void remove(NodeLocator locator) {
+        nodesToDelete.add(locator.locate(document));
+    }
+
+    public void addCopy(NodeLocator locator, NodeLocator[] fieldLocators, String... values) {
+        Node node = locator.locate(document);
+        Node copy = node.cloneNode(true);
+        for (int i = 0; i < fieldLocators.length; i++) {
+            fieldLocators[i].locate(copy).setTextContent(values[i]);
+        }
+        nodesToInsert.add(copy);
+        insertBeforeNodes.add(node);
+    }
+
+    public void writeTo(OutputStream outputStream) throws IOException {
+        try {
+            outputStream.write(DOM.domToString(getDocument(), true).getBytes("UTF-8"));
+        } catch (TransformerException e) {
+            throw new IOException("Unable to serialise PBCore document", e);
+        }
+    }
+
+    /**
+     * Get the resulting document, with copies added and nodes removed. No further changes can be made to the
+     * document through this object afterwards.
+     *
+     * @return The document.
+     */
+    public Document getDocument() {
+        //Nodes are moved last, to avoid affecting the node locators.
+        if (!applied) {
+            applied = true;
+            for (int i = 0; i < nodesToInsert.size(); i++) {
+                insertBeforeNodes.get(i).getParentNode().insertBefore(nodesToInsert.get(i), insertBeforeNodes.get(i));
+            }
+            for (Node node : nodesToDelete) {
+                node.getParentNode().removeChild(node);
+            }
+        }
+        return document;
+    }
+}
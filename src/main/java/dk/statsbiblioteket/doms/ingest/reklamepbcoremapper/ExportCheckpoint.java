@@ -0,0 +1,102 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Timestamp;
+import java.util.Properties;
+
+/**
+ * State of an export kept between runs in a small properties file, so the next run can continue where the previous
+ * one left off.
+ */
+public class ExportCheckpoint {
+    private static final String LAST_MODIFIED = "lastModified";
+    private static final String LAST_AD_ID = "lastAdID";
+
+    private final File file;
+    private final Properties properties = new Properties();
+
+    /**
+     * Initialise a checkpoint, reading the state from the file if it exists.
+     *
+     * @param file The checkpoint file.
+     * @throws IOException On trouble reading an existing checkpoint file.
+     */
+    public ExportCheckpoint(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            InputStream inputStream = new FileInputStream(file);
+            try {
+                properties.load(inputStream);
+            } finally {
+                inputStream.close();
+            }
+        }
+    }
+
+    /**
+     * Get the highest modification time of the exported records.
+     *
+     * @return The high-water mark, or null if nothing has been exported yet.
+     */
+    public Timestamp getLastModified() {
+        String lastModified = properties.getProperty(LAST_MODIFIED);
+        return lastModified == null ? null : Timestamp.valueOf(lastModified);
+    }
+
+    /**
+     * Set the highest modification time of the exported records.
+     *
+     * @param lastModified The high-water mark.
+     */
+    public void setLastModified(Timestamp lastModified) {
+        properties.setProperty(LAST_MODIFIED, lastModified.toString());
+    }
+
+    /**
+     * Get the AdID of the last advertisement exported by an interrupted export, which exports advertisements in order
+     * of AdID.
+     *
+     * @return The AdID, or null if the previous export was not interrupted.
+     */
+    public Integer getLastAdID() {
+        String lastAdID = properties.getProperty(LAST_AD_ID);
+        return lastAdID == null ? null : Integer.valueOf(lastAdID);
+    }
+
+    /**
+     * Set the AdID of the last advertisement exported so far, so the export can be resumed after it if interrupted.
+     *
+     * @param lastAdID The AdID, or null when the export is complete.
+     */
+    public void setLastAdID(Integer lastAdID) {
+        if (lastAdID == null) {
+            properties.remove(LAST_AD_ID);
+        } else {
+            properties.setProperty(LAST_AD_ID, lastAdID.toString());
+        }
+    }
+
+    /**
+     * Write the checkpoint file. The file is replaced atomically, so an interrupted write leaves the previous
+     * checkpoint in place.
+     *
+     * @throws IOException On trouble writing the file.
+     */
+    public void save() throws IOException {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        OutputStream outputStream = new FileOutputStream(temporaryFile);
+        try {
+            properties.store(outputStream, "Export checkpoint");
+        } finally {
+            outputStream.close();
+        }
+        if (!temporaryFile.renameTo(file)) {
+            throw new IOException("Unable to replace checkpoint file " + file);
+        }
+    }
+}
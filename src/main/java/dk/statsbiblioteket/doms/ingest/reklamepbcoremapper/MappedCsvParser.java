@@ -0,0 +1,285 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Parse a utf-8 encoded CSV file in parallel, one row at a time.
+ *
+ * The file is memory mapped and split into chunks at row boundaries, and the chunks are parsed by a pool of threads
+ * with a {@link CsvParser} each. Rows are still returned in the order of the file, with the line numbers they have in
+ * the file, so the result is the same as parsing the file with a single {@link CsvParser}.
+ *
+ * A row boundary is a line break outside quoted cells. Two quotes in a row inside a quoted cell do not change whether
+ * the parser is inside a quoted cell, so a line break is outside quoted cells if the number of quotes before it is
+ * even. The quotes and line breaks of each part of the file are counted in parallel, and the first boundary of each
+ * part found from the counts of the parts before it. Quotes and line breaks are never part of multi-byte utf-8
+ * characters, so they are counted without decoding the file.
+ */
+public final class MappedCsvParser implements CsvRowReader {
+    /**
+     * Default size of the parts the file is split into, in bytes. Parsed rows are kept until read, so chunks are kept
+     * small to keep them out of the old generation of the heap.
+     */
+    private static final int DEFAULT_CHUNK_SIZE = 512 * 1024;
+
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    /** Number of chunks parsed ahead per thread. */
+    private static final int CHUNKS_PER_THREAD = 2;
+
+    private static final byte QUOTE = '"';
+    private static final byte ROW_DELIMINATOR = '\n';
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ExecutorService executorService;
+    private final List<Chunk> chunks = new ArrayList<Chunk>();
+    private final Queue<Future<ParsedChunk>> parsedChunks = new ArrayDeque<Future<ParsedChunk>>();
+    private int nextChunk;
+    private ParsedChunk currentChunk;
+    private int currentRow;
+    private int rowLineNumber;
+
+    /** A chunk of the file, starting at a row boundary and ending at the start of the next chunk. */
+    private static class Chunk {
+        final long start;
+        final int lineNumber;
+        long end;
+
+        private Chunk(long start, int lineNumber) {
+            this.start = start;
+            this.lineNumber = lineNumber;
+        }
+    }
+
+    /** The quotes and line breaks of a part of the file, and the first possible row boundaries in the part. */
+    private static class Scan {
+        int quotes;
+        int lineBreaks;
+        /** First row boundary if the part starts outside quoted cells, and if it starts inside. -1 if none. */
+        final long[] boundaries = {-1, -1};
+        /** Number of line breaks in the part up to each boundary. */
+        final int[] boundaryLineBreaks = new int[2];
+    }
+
+    private static class ParsedChunk {
+        final List<List<String>> rows = new ArrayList<List<String>>();
+        final List<Integer> lineNumbers = new ArrayList<Integer>();
+    }
+
+    /**
+     * Initialise a parser, and find the chunks of the file.
+     *
+     * @param csvFile The utf-8 encoded CSV file.
+     * @param threads Number of threads to parse with.
+     * @throws IOException On trouble reading the file.
+     */
+    public MappedCsvParser(File csvFile, int threads) throws IOException {
+        this(csvFile, threads, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Initialise a parser, and find the chunks of the file.
+     *
+     * @param csvFile The utf-8 encoded CSV file.
+     * @param threads Number of threads to parse with.
+     * @param chunkSize Size of the parts the file is split into, in bytes. Chunks are extended to the next row
+     * boundary, and parts without a row boundary are joined with the chunk before.
+     * @throws IOException On trouble reading the file.
+     */
+    MappedCsvParser(File csvFile, int threads, int chunkSize) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of threads must be positive, was " + threads);
+        }
+        file = new RandomAccessFile(csvFile, "r");
+        channel = file.getChannel();
+        executorService = Executors.newFixedThreadPool(threads);
+        try {
+            findChunks(chunkSize);
+            for (int i = 0; i < threads * CHUNKS_PER_THREAD; i++) {
+                parseNextChunk();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void findChunks(int chunkSize) throws IOException {
+        final long size = channel.size();
+        List<Future<Scan>> scans = new ArrayList<Future<Scan>>();
+        for (long start = 0; start < size; start += chunkSize) {
+            final long from = start;
+            final int length = (int) Math.min(chunkSize, size - start);
+            scans.add(executorService.submit(new Callable<Scan>() {
+                public Scan call() throws IOException {
+                    return scan(from, length);
+                }
+            }));
+        }
+        long quotes = 0;
+        int lineBreaks = 0;
+        for (int i = 0; i < scans.size(); i++) {
+            Scan scan = get(scans.get(i));
+            if (i == 0) {
+                chunks.add(new Chunk(0, 0));
+            } else {
+                int parity = (int) (quotes & 1);
+                long boundary = scan.boundaries[parity];
+                if (boundary != -1 && boundary < size) {
+                    chunks.get(chunks.size() - 1).end = boundary;
+                    chunks.add(new Chunk(boundary, lineBreaks + scan.boundaryLineBreaks[parity]));
+                }
+            }
+            quotes += scan.quotes;
+            lineBreaks += scan.lineBreaks;
+        }
+        if (!chunks.isEmpty()) {
+            chunks.get(chunks.size() - 1).end = size;
+        }
+    }
+
+    private Scan scan(long from, int length) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, length);
+        Scan scan = new Scan();
+        // Copying to an array in blocks is faster than reading the buffer a byte at a time
+        byte[] bytes = new byte[SCAN_BUFFER_SIZE];
+        long position = from;
+        while (buffer.hasRemaining()) {
+            int read = Math.min(bytes.length, buffer.remaining());
+            buffer.get(bytes, 0, read);
+            for (int i = 0; i < read; i++) {
+                if (bytes[i] == QUOTE) {
+                    scan.quotes++;
+                } else if (bytes[i] == ROW_DELIMINATOR) {
+                    scan.lineBreaks++;
+                    int parity = scan.quotes & 1;
+                    if (scan.boundaries[parity] == -1) {
+                        scan.boundaries[parity] = position + i + 1;
+                        scan.boundaryLineBreaks[parity] = scan.lineBreaks;
+                    }
+                }
+            }
+            position += read;
+        }
+        return scan;
+    }
+
+    private void parseNextChunk() {
+        if (nextChunk == chunks.size()) {
+            return;
+        }
+        final Chunk chunk = chunks.get(nextChunk++);
+        parsedChunks.add(executorService.submit(new Callable<ParsedChunk>() {
+            public ParsedChunk call() throws IOException {
+                return parse(chunk);
+            }
+        }));
+    }
+
+    private ParsedChunk parse(Chunk chunk) throws IOException {
+        if (chunk.end - chunk.start > Integer.MAX_VALUE) {
+            throw new IOException("Rows from line " + (chunk.lineNumber + 1) + " too long to parse in parallel");
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunk.start, chunk.end - chunk.start);
+        CsvParser csvParser = new CsvParser(new InputStreamReader(new ByteBufferInputStream(buffer), "UTF-8"),
+                                            chunk.lineNumber);
+        ParsedChunk parsedChunk = new ParsedChunk();
+        List<String> row;
+        while ((row = csvParser.readRow()) != null) {
+            parsedChunk.rows.add(row);
+            parsedChunk.lineNumbers.add(csvParser.getLineNumber());
+        }
+        return parsedChunk;
+    }
+
+    public List<String> readRow() throws IOException {
+        while (currentChunk == null || currentRow == currentChunk.rows.size()) {
+            if (parsedChunks.isEmpty()) {
+                return null;
+            }
+            currentChunk = get(parsedChunks.remove());
+            currentRow = 0;
+            parseNextChunk();
+        }
+        rowLineNumber = currentChunk.lineNumbers.get(currentRow);
+        return currentChunk.rows.get(currentRow++);
+    }
+
+    public int getLineNumber() {
+        return rowLineNumber;
+    }
+
+    /**
+     * Stop the parsing threads and close the file.
+     *
+     * @throws IOException On trouble closing the file.
+     */
+    public void close() throws IOException {
+        executorService.shutdownNow();
+        file.close();
+    }
+
+    private <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while parsing CSV file");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw (IOException) e.getCause();
+        }
+    }
+
+    /** Read the remaining bytes of a buffer. */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int read = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, read);
+            return read;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+/**
+ * A record could not be mapped to PBCore because of the value of one of its fields.
+ */
+public class MappingException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final String field;
+
+    /**
+     * Initialise the exception.
+     *
+     * @param field The field that could not be mapped.
+     * @param message Why the field could not be mapped.
+     */
+    public MappingException(String field, String message) {
+        super(field + ": " + message);
+        this.field = field;
+    }
+
+    /**
+     * Initialise the exception.
+     *
+     * @param field The field that could not be mapped.
+     * @param cause Why the field could not be mapped.
+     */
+    public MappingException(String field, Throwable cause) {
+        super(field + ": " + cause, cause);
+        this.field = field;
+    }
+
+    /**
+     * Get the field that could not be mapped: the XPath of the PBCore element it maps to, or the name of the source
+     * column.
+     *
+     * @return The field.
+     */
+    public String getField() {
+        return field;
+    }
+}
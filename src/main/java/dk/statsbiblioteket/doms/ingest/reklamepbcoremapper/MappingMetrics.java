@@ -0,0 +1,285 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the stages of a mapping run.
+ *
+ * A stage is timed by taking a start time with {@link #start()} and passing it to {@link #record(String, long)} when
+ * the stage is done. Since {@link #record(String, long)} returns the current time, consecutive stages can be timed
+ * with one clock reading each. Latencies are kept in histograms with power of two buckets, so recording never
+ * allocates or locks. All methods are safe to use from several threads.
+ *
+ * Metrics can have a parent that everything is recorded in as well, such as the metrics of a whole run for the
+ * metrics of one of its input files.
+ */
+public class MappingMetrics {
+    /** Reading and parsing CSV rows. */
+    public static final String PARSE = "parse";
+    /** Reading a row of the main SQL query. */
+    public static final String FETCH = "fetch";
+    /** Prefix of the stages executing an SQL query, followed by the table queried. Child queries include reading. */
+    public static final String QUERY = "query.";
+    /** Creating a document from the template. */
+    public static final String INSTANTIATE = "instantiate";
+    /** Injecting the values of a record into the document. */
+    public static final String INJECT = "inject";
+    /** Serialising the document. */
+    public static final String SERIALISE = "serialise";
+    /** Validating the serialised document against the PBCore schema. */
+    public static final String VALIDATE = "validate";
+    /** Writing the serialised document to the output. */
+    public static final String WRITE = "write";
+
+    private static final int BUCKETS = 64;
+
+    private final MappingMetrics parent;
+    private final ConcurrentMap<String, Stage> stages = new ConcurrentHashMap<String, Stage>();
+    private final List<String> stageNames = new CopyOnWriteArrayList<String>();
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final long startTime = System.nanoTime();
+    private ScheduledExecutorService progressReporter;
+
+    private static class Stage {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+        /** Bucket i counts latencies of less than 2^i nanoseconds, and at least 2^(i-1). */
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        void record(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+                // Retry until this is not the maximum, or is set as the maximum
+            }
+            histogram.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(Math.max(nanos, 0)));
+        }
+
+        /**
+         * Get the upper bound of the bucket holding the given fraction of the recorded latencies.
+         */
+        long percentileNanos(double fraction) {
+            long threshold = (long) Math.ceil(count.get() * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram.get(i);
+                if (seen >= threshold && seen > 0) {
+                    return Math.min(1L << i, maxNanos.get());
+                }
+            }
+            return maxNanos.get();
+        }
+    }
+
+    /**
+     * Initialise metrics without a parent.
+     */
+    public MappingMetrics() {
+        this(null);
+    }
+
+    /**
+     * Initialise metrics recording everything in a parent as well.
+     *
+     * @param parent The parent metrics, or null.
+     */
+    public MappingMetrics(MappingMetrics parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Get the current time, for use as start time of a stage.
+     *
+     * @return The current time in nanoseconds.
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record the latency of a stage.
+     *
+     * @param stage Name of the stage.
+     * @param startNanos The start time of the stage, as returned by {@link #start()} or this method.
+     * @return The current time in nanoseconds, which can be used as start time of the next stage.
+     */
+    public long record(String stage, long startNanos) {
+        long now = System.nanoTime();
+        recordNanos(stage, now - startNanos);
+        return now;
+    }
+
+    private void recordNanos(String stage, long nanos) {
+        getStage(stage).record(nanos);
+        if (parent != null) {
+            parent.recordNanos(stage, nanos);
+        }
+    }
+
+    /**
+     * Count a record that has been mapped and written.
+     */
+    public void recordMapped() {
+        records.incrementAndGet();
+        if (parent != null) {
+            parent.recordMapped();
+        }
+    }
+
+    /**
+     * Count a record that could not be mapped.
+     */
+    public void recordFailed() {
+        failures.incrementAndGet();
+        if (parent != null) {
+            parent.recordFailed();
+        }
+    }
+
+    /**
+     * Get the number of records mapped and written so far.
+     *
+     * @return The number of records.
+     */
+    public long getRecords() {
+        return records.get();
+    }
+
+    /**
+     * Get the number of records that could not be mapped so far.
+     *
+     * @return The number of failed records.
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Start printing progress at a fixed interval, until {@link #stopProgressReports()} is called.
+     *
+     * @param out The stream to print progress to.
+     * @param intervalSeconds Seconds between progress reports.
+     */
+    public synchronized void startProgressReports(final PrintStream out, final long intervalSeconds) {
+        if (progressReporter != null) {
+            return;
+        }
+        progressReporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "progress");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        progressReporter.scheduleAtFixedRate(new Runnable() {
+            private long previousRecords;
+
+            public void run() {
+                long currentRecords = records.get();
+                out.println(String.format(Locale.ROOT, "Mapped %d records (%.1f records/s, %.1f records/s overall),"
+                                                  + " %d failed",
+                                          currentRecords, (currentRecords - previousRecords) / (double) intervalSeconds,
+                                          currentRecords / getElapsedSeconds(), failures.get()));
+                previousRecords = currentRecords;
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop printing progress.
+     */
+    public synchronized void stopProgressReports() {
+        if (progressReporter != null) {
+            progressReporter.shutdownNow();
+            progressReporter = null;
+        }
+    }
+
+    /**
+     * Write a summary of the run as JSON: the number of records and failures, the throughput, and for each stage the
+     * number of times it was recorded, its total, mean and maximum latency, latency percentiles and histogram.
+     * Percentiles are upper bounds, given by the histogram buckets.
+     *
+     * @param writer The writer to write to. It is not closed.
+     * @throws IOException On trouble writing.
+     */
+    public void writeJson(Writer writer) throws IOException {
+        double elapsedSeconds = getElapsedSeconds();
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"records\": ").append(records.get()).append(",\n");
+        json.append("  \"failures\": ").append(failures.get()).append(",\n");
+        json.append("  \"elapsedSeconds\": ").append(format(elapsedSeconds)).append(",\n");
+        json.append("  \"recordsPerSecond\": ").append(format(records.get() / elapsedSeconds)).append(",\n");
+        json.append("  \"stages\": {");
+        List<String> names = new ArrayList<String>(stageNames);
+        for (int i = 0; i < names.size(); i++) {
+            Stage stage = stages.get(names.get(i));
+            long count = stage.count.get();
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    \"").append(names.get(i)).append("\": {\n");
+            json.append("      \"count\": ").append(count).append(",\n");
+            json.append("      \"totalMillis\": ").append(format(stage.totalNanos.get() / 1e6)).append(",\n");
+            json.append("      \"meanMicros\": ").append(format(count == 0 ? 0 : stage.totalNanos.get() / 1e3 / count))
+                    .append(",\n");
+            json.append("      \"maxMicros\": ").append(format(stage.maxNanos.get() / 1e3)).append(",\n");
+            json.append("      \"p50Micros\": ").append(format(stage.percentileNanos(0.5) / 1e3)).append(",\n");
+            json.append("      \"p90Micros\": ").append(format(stage.percentileNanos(0.9) / 1e3)).append(",\n");
+            json.append("      \"p99Micros\": ").append(format(stage.percentileNanos(0.99) / 1e3)).append(",\n");
+            json.append("      \"histogramMicros\": {");
+            boolean first = true;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                long bucketCount = stage.histogram.get(bucket);
+                if (bucketCount > 0) {
+                    json.append(first ? "" : ", ").append("\"<").append(format((1L << bucket) / 1e3)).append("\": ")
+                            .append(bucketCount);
+                    first = false;
+                }
+            }
+            json.append("}\n");
+            json.append("    }");
+        }
+        json.append(names.isEmpty() ? "}\n" : "\n  }\n");
+        json.append("}\n");
+        writer.write(json.toString());
+        writer.flush();
+    }
+
+    private double getElapsedSeconds() {
+        return Math.max(System.nanoTime() - startTime, 1) / 1e9;
+    }
+
+    private Stage getStage(String name) {
+        Stage stage = stages.get(name);
+        if (stage == null) {
+            Stage newStage = new Stage();
+            stage = stages.putIfAbsent(name, newStage);
+            if (stage == null) {
+                stage = newStage;
+                stageNames.add(name);
+            }
+        }
+        return stage;
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+}
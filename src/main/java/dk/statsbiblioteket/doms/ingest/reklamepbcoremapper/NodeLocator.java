@@ -0,0 +1,120 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import org.w3c.dom.Node;
+
+import dk.statsbiblioteket.util.xml.DOM;
+import dk.statsbiblioteket.util.xml.XPathSelector;
+
+/**
+ * Locate a node in a copy of a template by its position.
+ *
+ * A locator is compiled once from an XPath expression evaluated on the template, and remembers the path from the
+ * context node to the selected node as a list of child indexes. Locating the same node in a copy of the template
+ * then only requires walking that path, without evaluating any XPath.
+ *
+ * Locators must be replayed on unmodified copies of the template, or at least before any node on their path has been
+ * moved or removed.
+ */
+public final class NodeLocator {
+    private static final XPathSelector XPATH_SELECTOR = DOM.createXPathSelector("p", PBCoreTemplate.PBCORE_NAMESPACE);
+
+    private final String xpath;
+    private final int[] childIndexes;
+    private NodeLocator parent;
+
+    private NodeLocator(String xpath, int[] childIndexes) {
+        this.xpath = xpath;
+        this.childIndexes = childIndexes;
+    }
+
+    /**
+     * Compile a locator for the node selected by an XPath expression relative to a context node. The PBCore
+     * namespace is bound to the prefix "p".
+     *
+     * @param context The context node in the template.
+     * @param xpath The XPath expression.
+     * @return A locator for the selected node, relative to the context node.
+     * @throws IllegalStateException If the expression does not select a node in the template, or selects a node
+     * outside the context node.
+     */
+    public static NodeLocator compile(Node context, String xpath) {
+        Node node = XPATH_SELECTOR.selectNode(context, xpath);
+        if (node == null) {
+            throw new IllegalStateException("Template does not match mapping, nothing found at '" + xpath + "'");
+        }
+        int depth = 0;
+        for (Node current = node; current != context; current = current.getParentNode()) {
+            if (current == null) {
+                throw new IllegalStateException("Node found at '" + xpath + "' is not below its context node");
+            }
+            depth++;
+        }
+        int[] childIndexes = new int[depth];
+        for (Node current = node; current != context; current = current.getParentNode()) {
+            int index = 0;
+            for (Node sibling = current.getPreviousSibling(); sibling != null; sibling = sibling.getPreviousSibling()) {
+                index++;
+            }
+            childIndexes[--depth] = index;
+        }
+        return new NodeLocator(xpath, childIndexes);
+    }
+
+    /**
+     * Locate the node in a copy of the template.
+     *
+     * @param context The node corresponding to the context node the locator was compiled from.
+     * @return The located node.
+     */
+    public Node locate(Node context) {
+        Node node = context;
+        for (int childIndex : childIndexes) {
+            node = node.getFirstChild();
+            for (int i = 0; i < childIndex; i++) {
+                node = node.getNextSibling();
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Get a locator for the parent of the node located by this locator.
+     *
+     * @return The locator of the parent node.
+     * @throws IllegalStateException If this locator locates the context node itself.
+     */
+    public NodeLocator getParent() {
+        if (childIndexes.length == 0) {
+            throw new IllegalStateException("Locator '" + xpath + "' has no parent");
+        }
+        if (parent == null) {
+            int[] parentChildIndexes = new int[childIndexes.length - 1];
+            System.arraycopy(childIndexes, 0, parentChildIndexes, 0, parentChildIndexes.length);
+            parent = new NodeLocator(xpath + "/..", parentChildIndexes);
+        }
+        return parent;
+    }
+
+    /**
+     * Get the path from the context node to the located node, as the index of each node among its siblings.
+     *
+     * @return The child indexes. The array must not be modified.
+     */
+    int[] getChildIndexes() {
+        return childIndexes;
+    }
+
+    /**
+     * Get the XPath expression this locator was compiled from.
+     *
+     * @return The XPath expression.
+     */
+    public String getXPath() {
+        return xpath;
+    }
+
+    @Override
+    public String toString() {
+        return xpath;
+    }
+}
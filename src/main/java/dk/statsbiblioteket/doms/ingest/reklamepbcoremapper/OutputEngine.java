@@ -0,0 +1,11 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+/**
+ * The ways a {@link PBCoreDocument} can be built and written.
+ */
+public enum OutputEngine {
+    /** Modify a copy of the template DOM, and serialise it with a transformer. */
+    DOM,
+    /** Write the template as precompiled UTF-8 fragments, with the record values escaped in between. */
+    STREAMING
+}
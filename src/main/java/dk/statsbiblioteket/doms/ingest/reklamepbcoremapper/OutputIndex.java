@@ -0,0 +1,265 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An index of the PBCore files written by a mapper, by the identifier of the record each file was mapped from.
+ *
+ * The index is a tab separated text file with one line per identifier, sorted by identifier: the identifier, the
+ * name of the PBCore file, the formatLocation of the record, the size of the file, and the MD5 checksum of the file.
+ * The identifier is the identifier cell for TV2 data, and the AdID for Biograf data. Numbers in identifiers are sorted
+ * by value, so AdID 20 comes before AdID 100. The index is read with {@link OutputIndexReader}.
+ *
+ * The index is kept between runs, like {@link OutputManifest}. An identifier added more than once in a run, or mapped
+ * to a different file name than in the previous run, is reported as a duplicate.
+ */
+public class OutputIndex {
+    /**
+     * The order of identifiers. Runs of digits are compared by their value, everything else character by character.
+     */
+    static final Comparator<String> IDENTIFIER_ORDER = new Comparator<String>() {
+        public int compare(String identifier1, String identifier2) {
+            int i1 = 0;
+            int i2 = 0;
+            while (i1 < identifier1.length() && i2 < identifier2.length()) {
+                if (isDigit(identifier1.charAt(i1)) && isDigit(identifier2.charAt(i2))) {
+                    int end1 = endOfDigits(identifier1, i1);
+                    int end2 = endOfDigits(identifier2, i2);
+                    int start1 = skipZeros(identifier1, i1, end1);
+                    int start2 = skipZeros(identifier2, i2, end2);
+                    // Without leading zeros, a longer run of digits is a larger number
+                    if (end1 - start1 != end2 - start2) {
+                        return (end1 - start1) - (end2 - start2);
+                    }
+                    for (; start1 < end1; start1++, start2++) {
+                        if (identifier1.charAt(start1) != identifier2.charAt(start2)) {
+                            return identifier1.charAt(start1) - identifier2.charAt(start2);
+                        }
+                    }
+                    i1 = end1;
+                    i2 = end2;
+                } else if (identifier1.charAt(i1) != identifier2.charAt(i2)) {
+                    return identifier1.charAt(i1) - identifier2.charAt(i2);
+                } else {
+                    i1++;
+                    i2++;
+                }
+            }
+            if (i1 < identifier1.length() || i2 < identifier2.length()) {
+                return i1 < identifier1.length() ? 1 : -1;
+            }
+            // Only differing in leading zeros
+            return identifier1.compareTo(identifier2);
+        }
+
+        private boolean isDigit(char c) {
+            return c >= '0' && c <= '9';
+        }
+
+        private int endOfDigits(String identifier, int start) {
+            int end = start;
+            while (end < identifier.length() && isDigit(identifier.charAt(end))) {
+                end++;
+            }
+            return end;
+        }
+
+        private int skipZeros(String identifier, int start, int end) {
+            while (start < end - 1 && identifier.charAt(start) == '0') {
+                start++;
+            }
+            return start;
+        }
+    };
+
+    private final File file;
+    private final Map<String, Entry> entries = new TreeMap<String, Entry>(IDENTIFIER_ORDER);
+    private final Set<String> seen = new HashSet<String>();
+    private final List<String> duplicates = new ArrayList<String>();
+
+    /**
+     * An entry of the index.
+     */
+    public static final class Entry {
+        private final String identifier;
+        private final String name;
+        private final String formatLocation;
+        private final long size;
+        private final String checksum;
+
+        Entry(String identifier, String name, String formatLocation, long size, String checksum) {
+            this.identifier = identifier;
+            this.name = name;
+            this.formatLocation = formatLocation;
+            this.size = size;
+            this.checksum = checksum;
+        }
+
+        public String getIdentifier() {
+            return identifier;
+        }
+
+        /**
+         * Get the name of the PBCore file, as written to the output sink.
+         *
+         * @return The file name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        public String getFormatLocation() {
+            return formatLocation;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Get the checksum of the PBCore file.
+         *
+         * @return The MD5 checksum of the file, in hexadecimal.
+         */
+        public String getChecksum() {
+            return checksum;
+        }
+    }
+
+    /**
+     * Initialise an index, reading the entries of the previous run from the file if it exists.
+     *
+     * @param file The index file.
+     * @throws IOException On trouble reading an existing index file.
+     */
+    public OutputIndex(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            for (Entry entry : new OutputIndexReader(file).getEntries()) {
+                entries.put(entry.getIdentifier(), entry);
+            }
+        }
+    }
+
+    /**
+     * Add the PBCore file of a record to the index.
+     *
+     * @param identifier The identifier of the record. It must not contain tabs or line breaks.
+     * @param name The name of the PBCore file.
+     * @param formatLocation The formatLocation of the record.
+     * @param size The size of the PBCore file.
+     * @param checksum The MD5 checksum of the PBCore file, in hexadecimal.
+     */
+    public void add(String identifier, String name, String formatLocation, long size, String checksum) {
+        checkField(identifier);
+        checkField(name);
+        checkField(formatLocation);
+        Entry entry = new Entry(identifier, name, formatLocation, size, checksum);
+        synchronized (this) {
+            Entry previous = entries.put(identifier, entry);
+            boolean seenBefore = !seen.add(identifier);
+            if (previous != null && (seenBefore || !previous.getName().equals(name))) {
+                duplicates.add(identifier + "\t" + previous.getName() + "\t" + name);
+            }
+        }
+    }
+
+    /**
+     * Keep the entry of a record that could not be mapped in this run, so it is not considered removed.
+     *
+     * @param identifier The identifier of the record.
+     */
+    public synchronized void retain(String identifier) {
+        seen.add(identifier);
+    }
+
+    /**
+     * Remove the entries of all records that were not added or retained in this run. Only call this after a run that
+     * mapped all records, not after an incremental run.
+     *
+     * @return The identifiers of the removed entries, sorted.
+     */
+    public synchronized List<String> removeUnseen() {
+        List<String> identifiers = new ArrayList<String>();
+        for (String identifier : entries.keySet()) {
+            if (!seen.contains(identifier)) {
+                identifiers.add(identifier);
+            }
+        }
+        for (String identifier : identifiers) {
+            entries.remove(identifier);
+        }
+        return identifiers;
+    }
+
+    /**
+     * Write the identifiers that were added more than once in this run, or mapped to a different file name than in the
+     * previous run, one per line in the order found. Each line is the identifier, the previous file name and the new
+     * file name, separated by tabs.
+     *
+     * @param writer The writer to write to. It is not closed.
+     * @throws IOException On trouble writing.
+     */
+    public synchronized void writeDuplicates(Writer writer) throws IOException {
+        for (String duplicate : duplicates) {
+            writer.write(duplicate + "\n");
+        }
+        writer.flush();
+    }
+
+    /**
+     * Forget the duplicates found so far, so a long running process can report the duplicates of each CSV file once.
+     */
+    public synchronized void clearDuplicates() {
+        duplicates.clear();
+    }
+
+    /**
+     * Get the number of identifiers that were added more than once in this run, or mapped to a different file name
+     * than in the previous run.
+     *
+     * @return The number of duplicates.
+     */
+    public synchronized int getDuplicateCount() {
+        return duplicates.size();
+    }
+
+    /**
+     * Write the index file. The file is replaced atomically, so an interrupted write leaves the previous index in
+     * place.
+     *
+     * @throws IOException On trouble writing the file.
+     */
+    public synchronized void save() throws IOException {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temporaryFile), "UTF-8");
+        try {
+            for (Entry entry : entries.values()) {
+                writer.write(entry.getIdentifier() + "\t" + entry.getName() + "\t" + entry.getFormatLocation() + "\t"
+                                     + entry.getSize() + "\t" + entry.getChecksum() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        if (!temporaryFile.renameTo(file)) {
+            throw new IOException("Unable to replace index file " + file);
+        }
+    }
+
+    private static void checkField(String value) {
+        if (value.indexOf('\t') != -1 || value.indexOf('\n') != -1 || value.indexOf('\r') != -1) {
+            throw new IllegalArgumentException("Tab or line break in index field '" + value + "'");
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Look up the PBCore files of records in an index written by {@link OutputIndex}, without reading the files.
+ *
+ * The index is read into memory once. Lookups by identifier and scans of a range of identifiers are done on the
+ * sorted entries, in logarithmic time.
+ */
+public class OutputIndexReader {
+    private final TreeMap<String, OutputIndex.Entry> entries =
+            new TreeMap<String, OutputIndex.Entry>(OutputIndex.IDENTIFIER_ORDER);
+
+    /**
+     * Read an index.
+     *
+     * @param file The index file.
+     * @throws IOException On trouble reading the file, or if it has a malformed line.
+     */
+    public OutputIndexReader(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 5) {
+                    throw new IOException("Malformed line in index " + file + ": " + line);
+                }
+                try {
+                    entries.put(fields[0], new OutputIndex.Entry(fields[0], fields[1], fields[2],
+                                                                 Long.parseLong(fields[3]), fields[4]));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed line in index " + file + ": " + line, e);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Look up a record.
+     *
+     * @param identifier The identifier of the record.
+     * @return The entry of the record, or null if it is not in the index.
+     */
+    public OutputIndex.Entry get(String identifier) {
+        return entries.get(identifier);
+    }
+
+    /**
+     * Get the entries of a range of identifiers. Numbers in identifiers are compared by value, so the range of "10"
+     * to "20" holds the AdIDs 10 to 19, but not 100.
+     *
+     * @param fromIdentifier The first identifier of the range, or null to start with the first entry.
+     * @param toIdentifier The identifier after the range, or null to end with the last entry.
+     * @return The entries of the range, sorted by identifier.
+     */
+    public List<OutputIndex.Entry> getRange(String fromIdentifier, String toIdentifier) {
+        SortedMap<String, OutputIndex.Entry> range = entries;
+        if (fromIdentifier != null) {
+            range = range.tailMap(fromIdentifier);
+        }
+        if (toIdentifier != null) {
+            range = range.headMap(toIdentifier);
+        }
+        return new ArrayList<OutputIndex.Entry>(range.values());
+    }
+
+    /**
+     * Get all entries.
+     *
+     * @return The entries, sorted by identifier.
+     */
+    public List<OutputIndex.Entry> getEntries() {
+        return new ArrayList<OutputIndex.Entry>(entries.values());
+    }
+
+    /**
+     * Get the number of entries.
+     *
+     * @return The number of entries.
+     */
+    public int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,47 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * How PBCore files are placed in subdirectories of the output, to keep the number of files per directory bounded.
+ */
+public enum OutputLayout {
+    /** All files in the output directory itself. */
+    FLAT,
+    /** Files in one of 256 directories, named by the first two hexadecimal digits of the MD5 of the file name. */
+    HASH,
+    /** Files in a directory per year and month of the record, such as 1999/01. Undated records are in "undated". */
+    DATE;
+
+    /** Directory of records without a date in the {@link #DATE} layout. */
+    public static final String UNDATED = "undated";
+
+    /**
+     * Get the path of a file in this layout.
+     *
+     * @param name The file name.
+     * @param month The year and month of the record in the form yyyy-MM, or null if the record has no date.
+     * @return The path of the file relative to the output, with directories separated by /.
+     */
+    public String getPath(String name, String month) {
+        switch (this) {
+            case HASH:
+                return OutputManifest.md5(utf8(name)).substring(0, 2) + "/" + name;
+            case DATE:
+                if (month == null) {
+                    return UNDATED + "/" + name;
+                }
+                return month.replace('-', '/') + "/" + name;
+            default:
+                return name;
+        }
+    }
+
+    private static byte[] utf8(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not supported", e);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A manifest of the files written by a mapper, with the MD5 checksum and size of each file.
+ *
+ * The manifest is kept between runs, so a run can tell which files are unchanged since the previous run and need not
+ * be written again, and which files have been added, changed or removed. The manifest is a tab separated text file
+ * with one line per file name, sorted by file name.
+ *
+ * The manifest is used as an output sink in front of the sink the files are written to.
+ */
+public class OutputManifest implements OutputSink {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File file;
+    private final OutputSink outputSink;
+    private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+    private final Set<String> seen = new HashSet<String>();
+    private final Set<String> added = new TreeSet<String>();
+    private final Set<String> changed = new TreeSet<String>();
+    private final Set<String> removed = new TreeSet<String>();
+
+    private static class Entry {
+        final String checksum;
+        final long size;
+
+        private Entry(String checksum, long size) {
+            this.checksum = checksum;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Initialise a manifest, reading the entries of the previous run from the file if it exists.
+     *
+     * @param file The manifest file.
+     * @param outputSink The sink to write changed files to.
+     * @throws IOException On trouble reading an existing manifest file.
+     */
+    public OutputManifest(File file, OutputSink outputSink) throws IOException {
+        this.file = file;
+        this.outputSink = outputSink;
+        if (file.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length != 3) {
+                        throw new IOException("Malformed line in manifest " + file + ": " + line);
+                    }
+                    entries.put(fields[0], new Entry(fields[1], Long.parseLong(fields[2])));
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Write a file, unless its content is unchanged since the previous run and it is still present in the output.
+     * The file is recorded in the manifest once it has been written.
+     *
+     * @param name The file name.
+     * @param content The content of the file.
+     * @param checksum The MD5 checksum of the content, in hexadecimal, or null to compute it here.
+     * @throws IOException On trouble writing the file.
+     */
+    public void write(String name, byte[] content, String checksum) throws IOException {
+        Entry entry = new Entry(checksum == null ? md5(content) : checksum, content.length);
+        Entry previous;
+        synchronized (this) {
+            seen.add(name);
+            previous = entries.get(name);
+        }
+        boolean unchanged = previous != null && previous.size == entry.size
+                && previous.checksum.equals(entry.checksum);
+        if (unchanged && outputSink.exists(name)) {
+            return;
+        }
+        outputSink.write(name, content, entry.checksum);
+        synchronized (this) {
+            entries.put(name, entry);
+            if (previous == null) {
+                added.add(name);
+            } else if (!unchanged && !added.contains(name)) {
+                changed.add(name);
+            }
+        }
+    }
+
+    public boolean exists(String name) {
+        return outputSink.exists(name);
+    }
+
+    /**
+     * Close the sink the files are written to. The manifest itself is written by {@link #save()}.
+     *
+     * @throws IOException On trouble closing the sink.
+     */
+    public void close() throws IOException {
+        outputSink.close();
+    }
+
+    /**
+     * Keep the entry of a file that could not be written in this run, so it is not considered removed.
+     *
+     * @param name The file name.
+     */
+    public void retain(String name) {
+        synchronized (this) {
+            seen.add(name);
+        }
+        outputSink.retain(name);
+    }
+
+    /**
+     * Remove the entries of all files that were not written, found unchanged or retained in this run. Only call this
+     * after a run that mapped all records, not after an incremental run.
+     *
+     * @return The names of the removed files, sorted.
+     */
+    public synchronized List<String> removeUnseen() {
+        List<String> names = new ArrayList<String>();
+        for (String name : entries.keySet()) {
+            if (!seen.contains(name)) {
+                names.add(name);
+            }
+        }
+        for (String name : names) {
+            entries.remove(name);
+            removed.add(name);
+        }
+        return names;
+    }
+
+    /**
+     * Write the files added, changed and removed in this run, one per line, sorted by file name within each group.
+     * Each line is the letter A, M or D, a tab, and the file name.
+     *
+     * @param writer The writer to write to. It is not closed.
+     * @throws IOException On trouble writing.
+     */
+    public synchronized void writeChanges(Writer writer) throws IOException {
+        writeChanges(writer, "A", added);
+        writeChanges(writer, "M", changed);
+        writeChanges(writer, "D", removed);
+        writer.flush();
+    }
+
+    /**
+     * Forget the changes recorded so far, so a long running process can list the changes of each CSV file once.
+     */
+    public synchronized void clearChanges() {
+        added.clear();
+        changed.clear();
+        removed.clear();
+    }
+
+    /**
+     * Get the number of files added, changed or removed in this run.
+     *
+     * @return The number of changes.
+     */
+    public synchronized int getChangeCount() {
+        return added.size() + changed.size() + removed.size();
+    }
+
+    /**
+     * Write the manifest file. The file is replaced atomically, so an interrupted write leaves the previous manifest
+     * in place.
+     *
+     * @throws IOException On trouble writing the file.
+     */
+    public synchronized void save() throws IOException {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temporaryFile), "UTF-8");
+        try {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writer.write(entry.getKey() + "\t" + entry.getValue().checksum + "\t" + entry.getValue().size + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        if (!temporaryFile.renameTo(file)) {
+            throw new IOException("Unable to replace manifest file " + file);
+        }
+    }
+
+    private static void writeChanges(Writer writer, String change, Set<String> names) throws IOException {
+        for (String name : names) {
+            writer.write(change + "\t" + name + "\n");
+        }
+    }
+
+    /**
+     * Get the MD5 checksum of the content of a file.
+     *
+     * @param content The content.
+     * @return The checksum, in hexadecimal.
+     */
+    static String md5(byte[] content) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not supported", e);
+        }
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xF];
+        }
+        return new String(hex);
+    }
+}
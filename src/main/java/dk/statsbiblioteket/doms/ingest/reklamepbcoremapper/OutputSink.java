@@ -0,0 +1,37 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination of the PBCore files written by the mappers.
+ *
+ * Implementations must allow files to be written from several threads.
+ */
+public interface OutputSink extends Closeable {
+    /**
+     * Write a file.
+     *
+     * @param name The file name, relative to the output. Directories are separated by /.
+     * @param content The content of the file.
+     * @param checksum The MD5 checksum of the content, in hexadecimal, or null if the writer has not computed it.
+     * @throws IOException On trouble writing the file.
+     */
+    void write(String name, byte[] content, String checksum) throws IOException;
+
+    /**
+     * Check whether a file written by a previous run is still present in the output. Sinks that write new output on
+     * every run return false.
+     *
+     * @param name The file name, relative to the output. Directories are separated by /.
+     * @return true if the file is present.
+     */
+    boolean exists(String name);
+
+    /**
+     * Keep the file written by a previous run, because the record could not be mapped in this run.
+     *
+     * @param name The file name, relative to the output. Directories are separated by /.
+     */
+    void retain(String name);
+}
@@ -0,0 +1,46 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A PBCore document for one record, created from a {@link PBCoreTemplate}.
+ *
+ * Nodes are addressed with locators compiled from the template. All locators refer to the unmodified template:
+ * removed nodes and added copies only take effect when the document is written.
+ */
+public interface PBCoreDocument {
+    /**
+     * Replace the content of a node with a text.
+     *
+     * @param locator Locator of the node in the template.
+     * @param value The text. An empty text leaves the node empty.
+     */
+    void setText(NodeLocator locator, String value);
+
+    /**
+     * Leave a node, and everything below it, out of the document.
+     *
+     * @param locator Locator of the node in the template.
+     */
+    void remove(NodeLocator locator);
+
+    /**
+     * Add a copy of a node from the template, inserted just before the node, with the content of some of its
+     * descendants replaced by texts. Copies are added in the order of the calls. The copies are added even if the
+     * node itself is removed.
+     *
+     * @param locator Locator of the node in the template.
+     * @param fieldLocators Locators of the descendants to set texts of, relative to the node.
+     * @param values The texts, in the same order as the field locators.
+     */
+    void addCopy(NodeLocator locator, NodeLocator[] fieldLocators, String... values);
+
+    /**
+     * Write the document as UTF-8 encoded XML, with XML declaration.
+     *
+     * @param outputStream The stream to write to. The stream is not closed.
+     * @throws IOException On trouble writing the document.
+     */
+    void writeTo(OutputStream outputStream) throws IOException;
+}
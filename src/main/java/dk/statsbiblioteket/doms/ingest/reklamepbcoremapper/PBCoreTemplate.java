@@ -0,0 +1,150 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import org.w3c.dom.Document;
+
+import dk.statsbiblioteket.util.xml.DOM;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A PBCore template document. Each template is read from the classpath and parsed once per process, and every record
+ * is given its own deep copy of the parsed document.
+ *
+ * Reading a DOM is not guaranteed to be thread safe, so the parsed document is only read while holding the lock of
+ * the template. Each thread copies documents from a copy of its own, so mapping threads do not wait for each other.
+ */
+public final class PBCoreTemplate {
+    /** The PBCore namespace used in the templates. */
+    public static final String PBCORE_NAMESPACE = "http://www.pbcore.org/PBCore/PBCoreNamespace.html";
+
+    private static final Map<String, PBCoreTemplate> TEMPLATES = new HashMap<String, PBCoreTemplate>();
+
+    private final String resourceName;
+    private final Document template;
+    private volatile StreamingPBCoreTemplate streamingTemplate;
+
+    /** The copy of the template each thread copies documents from. */
+    private final ThreadLocal<Document> threadTemplate = new ThreadLocal<Document>() {
+        @Override
+        protected Document initialValue() {
+            synchronized (PBCoreTemplate.this) {
+                return (Document) template.cloneNode(true);
+            }
+        }
+    };
+
+    /**
+     * Read and parse a template, bypassing the cache. Use {@link #getTemplate(String)} instead; this is only package
+     * private for benchmarking.
+     *
+     * @param resourceName Name of the template resource on the classpath.
+     */
+    PBCoreTemplate(String resourceName) {
+        this.resourceName = resourceName;
+        InputStream inputStream = PBCoreTemplate.class.getClassLoader().getResourceAsStream(resourceName);
+        if (inputStream == null) {
+            throw new IllegalStateException("PBCore template '" + resourceName + "' not found on classpath");
+        }
+        try {
+            this.template = DOM.streamToDOM(inputStream, true);
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                // Ignore, the template has been read
+            }
+        }
+        if (template == null) {
+            throw new IllegalStateException("PBCore template '" + resourceName + "' could not be parsed");
+        }
+    }
+
+    /**
+     * Get the template read from the given classpath resource. The template is parsed on first request only.
+     *
+     * @param resourceName Name of the template resource on the classpath.
+     * @return The parsed template.
+     */
+    public static synchronized PBCoreTemplate getTemplate(String resourceName) {
+        PBCoreTemplate pbcoreTemplate = TEMPLATES.get(resourceName);
+        if (pbcoreTemplate == null) {
+            pbcoreTemplate = new PBCoreTemplate(resourceName);
+            TEMPLATES.put(resourceName, pbcoreTemplate);
+        }
+        return pbcoreTemplate;
+    }
+
+    /**
+     * Get the name of the classpath resource this template was read from.
+     *
+     * @return The resource name.
+     */
+    public String getResourceName() {
+        return resourceName;
+    }
+
+    /**
+     * Compile a locator for the node selected by an XPath expression on the template document. The PBCore
+     * namespace is bound to the prefix "p".
+     *
+     * @param xpath The XPath expression.
+     * @return A locator to be used on documents returned by {@link #newDocument()}.
+     * @throws IllegalStateException If the expression does not select a node in the template.
+     */
+    public synchronized NodeLocator compileLocator(String xpath) {
+        return NodeLocator.compile(template, xpath);
+    }
+
+    /**
+     * Compile a locator for the node selected by an XPath expression relative to a node of the template.
+     *
+     * @param context Locator of the context node.
+     * @param xpath The XPath expression, relative to the context node.
+     * @return A locator to be used on the node located by the context locator.
+     * @throws IllegalStateException If the expression does not select a node in the template.
+     */
+    public synchronized NodeLocator compileLocator(NodeLocator context, String xpath) {
+        return NodeLocator.compile(context.locate(template), xpath);
+    }
+
+    /**
+     * Create a new PBCore document from this template.
+     *
+     * @param outputEngine How the document is built and written.
+     * @return A new PBCore document.
+     */
+    public PBCoreDocument createDocument(OutputEngine outputEngine) {
+        switch (outputEngine) {
+            case STREAMING:
+                return new StreamingPBCoreDocument(getStreamingTemplate());
+            default:
+                return new DomPBCoreDocument(newDocument());
+        }
+    }
+
+    private StreamingPBCoreTemplate getStreamingTemplate() {
+        StreamingPBCoreTemplate compiled = streamingTemplate;
+        if (compiled == null) {
+            synchronized (this) {
+                compiled = streamingTemplate;
+                if (compiled == null) {
+                    compiled = new StreamingPBCoreTemplate(template);
+                    streamingTemplate = compiled;
+                }
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * Get a new, independent copy of the template document, which may be freely modified.
+     *
+     * @return A deep copy of the template document.
+     */
+    public Document newDocument() {
+        return (Document) threadTemplate.get().cloneNode(true);
+    }
+}
@@ -0,0 +1,60 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Validate PBCore documents against an XML schema, such as the PBCore XSD, before they are written.
+ *
+ * The schema is compiled once, and shared by all threads. Validators are not thread safe, so each thread validates
+ * with a validator of its own. Documents are validated from their serialised bytes in memory.
+ */
+public final class PBCoreValidator {
+    /** The field given in {@link MappingException}s for documents that are not valid. */
+    public static final String FIELD = "PBCore schema";
+
+    private final Schema schema;
+    private final ThreadLocal<Validator> validators = new ThreadLocal<Validator>() {
+        @Override
+        protected Validator initialValue() {
+            return schema.newValidator();
+        }
+    };
+
+    /**
+     * Initialise a validator, compiling the schema.
+     *
+     * @param schemaFile The XML schema file. Schemas it imports or includes are resolved relative to it.
+     * @throws IllegalArgumentException If the schema could not be read or compiled.
+     */
+    public PBCoreValidator(File schemaFile) {
+        try {
+            schema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(schemaFile);
+        } catch (SAXException e) {
+            throw new IllegalArgumentException("Could not compile schema '" + schemaFile + "'", e);
+        }
+    }
+
+    /**
+     * Validate a document.
+     *
+     * @param pbcore The serialised PBCore document.
+     * @throws MappingException With the field {@link #FIELD} if the document is not valid.
+     * @throws IOException On trouble reading the document.
+     */
+    public void validate(byte[] pbcore) throws MappingException, IOException {
+        try {
+            validators.get().validate(new StreamSource(new ByteArrayInputStream(pbcore)));
+        } catch (SAXException e) {
+            throw new MappingException(FIELD, e);
+        }
+    }
+}
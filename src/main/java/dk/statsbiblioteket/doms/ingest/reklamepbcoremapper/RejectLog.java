@@ -0,0 +1,121 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A log of the records a mapper could not map.
+ *
+ * The log is a tab separated text file with one line per rejected record: the identifier of the record, the field
+ * that could not be mapped, and the error. The identifier is the line number of the row in the CSV file for TV2 data,
+ * and the AdID for Biograf data. The field is empty if the failure is not caused by a single field.
+ *
+ * The identifiers in a log can be read with {@link #readIdentifiers(File)}, to map only the rejected records again
+ * once the cause has been fixed.
+ */
+public class RejectLog implements Closeable {
+    private final Writer writer;
+    private int rejectCount;
+    private IOException failure;
+
+    /**
+     * Initialise a log, replacing the file if it exists.
+     *
+     * @param file The file to write rejected records to.
+     * @throws IOException On trouble creating the file.
+     */
+    public RejectLog(File file) throws IOException {
+        writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    }
+
+    /**
+     * Read the identifiers of the rejected records in a log.
+     *
+     * @param file The log file.
+     * @return The identifiers, in ascending order.
+     * @throws IOException On trouble reading the file, or if it has a malformed line.
+     */
+    public static Set<Integer> readIdentifiers(File file) throws IOException {
+        Set<Integer> identifiers = new TreeSet<Integer>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                int end = line.indexOf('\t');
+                try {
+                    identifiers.add(Integer.parseInt(end == -1 ? line : line.substring(0, end)));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed line in reject log " + file + ": " + line, e);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return identifiers;
+    }
+
+    /**
+     * Log a rejected record. The line is flushed at once, so it is kept even if the run is aborted. Errors writing
+     * the log are reported when it is closed.
+     *
+     * @param identifier The identifier of the record.
+     * @param e Why the record was rejected. If it is a {@link MappingException}, its field is logged as well.
+     */
+    public synchronized void reject(int identifier, Exception e) {
+        String field = "";
+        Throwable error = e;
+        if (e instanceof MappingException) {
+            field = ((MappingException) e).getField();
+            if (e.getCause() != null) {
+                error = e.getCause();
+            }
+        }
+        rejectCount++;
+        if (failure != null) {
+            return;
+        }
+        try {
+            writer.write(identifier + "\t" + clean(field) + "\t" + clean(error.toString()) + "\n");
+            writer.flush();
+        } catch (IOException writeFailure) {
+            failure = writeFailure;
+        }
+    }
+
+    /**
+     * Get the number of records rejected so far.
+     *
+     * @return The number of rejected records.
+     */
+    public synchronized int getRejectCount() {
+        return rejectCount;
+    }
+
+    /**
+     * Close the log file.
+     *
+     * @throws IOException On trouble writing or closing the file.
+     */
+    public synchronized void close() throws IOException {
+        writer.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static String clean(String value) {
+        return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+}
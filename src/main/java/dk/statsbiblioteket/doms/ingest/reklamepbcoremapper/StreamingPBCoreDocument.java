@@ -0,0 +1,189 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A PBCore document written directly from a compiled template, without building a DOM.
+ *
+ * The document only records the texts, removals and copies of the record. When written, the template fragments are
+ * copied to the output, with record values escaped and UTF-8 encoded in place.
+ */
+public class StreamingPBCoreDocument implements PBCoreDocument {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final StreamingPBCoreTemplate template;
+    private final String[] texts;
+    private final boolean[] removed;
+    private List<Copy>[] copies;
+
+    private static class Copy {
+        final String[] texts;
+
+        private Copy(String[] texts) {
+            this.texts = texts;
+        }
+    }
+
+    /**
+     * Initialise the document.
+     *
+     * @param template The compiled template.
+     */
+    StreamingPBCoreDocument(StreamingPBCoreTemplate template) {
+        this.template = template;
+        this.texts = new String[template.size()];
+        this.removed = new boolean[template.size()];
+    }
+
+    public void setText(NodeLocator locator, String value) {
+        texts[template.resolve(locator, 0)] = value == null ? "" : value;
+    }
+
+    public void remove(NodeLocator locator) {
+        removed[template.resolve(locator, 0)] = true;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void addCopy(NodeLocator locator, NodeLocator[] fieldLocators, String... values) {
+        int ordinal = template.resolve(locator, 0);
+        String[] copyTexts = new String[template.subtreeEnds[ordinal] - ordinal];
+        for (int i = 0; i < fieldLocators.length; i++) {
+            copyTexts[template.resolve(fieldLocators[i], ordinal) - ordinal] = values[i] == null ? "" : values[i];
+        }
+        if (copies == null) {
+            copies = (List<Copy>[]) new List<?>[template.size()];
+        }
+        if (copies[ordinal] == null) {
+            copies[ordinal] = new ArrayList<Copy>();
+        }
+        copies[ordinal].add(new Copy(copyTexts));
+    }
+
+    public void writeTo(OutputStream outputStream) throws IOException {
+        Utf8Output output = new Utf8Output(outputStream);
+        output.write(StreamingPBCoreTemplate.XML_DECLARATION);
+        for (int child = 1; child < template.size(); child = template.subtreeEnds[child]) {
+            writeNode(output, child, texts, 0, true);
+        }
+        output.flush();
+    }
+
+    private void writeNode(Utf8Output output, int ordinal, String[] nodeTexts, int textOffset, boolean document)
+            throws IOException {
+        if (document && copies != null && copies[ordinal] != null) {
+            for (Copy copy : copies[ordinal]) {
+                writeNode(output, ordinal, copy.texts, ordinal, false);
+            }
+        }
+        if (document && removed[ordinal]) {
+            return;
+        }
+        if (!template.elements[ordinal]) {
+            output.write(template.startFragments[ordinal]);
+            return;
+        }
+        String text = nodeTexts[ordinal - textOffset];
+        int subtreeEnd = template.subtreeEnds[ordinal];
+        if (text != null) {
+            if (text.isEmpty()) {
+                output.write(template.emptyFragments[ordinal]);
+            } else {
+                output.write(template.startFragments[ordinal]);
+                output.writeEscaped(text);
+                output.write(template.endFragments[ordinal]);
+            }
+        } else if (subtreeEnd == ordinal + 1) {
+            output.write(template.emptyFragments[ordinal]);
+        } else {
+            output.write(template.startFragments[ordinal]);
+            for (int child = ordinal + 1; child < subtreeEnd; child = template.subtreeEnds[child]) {
+                writeNode(output, child, nodeTexts, textOffset, document);
+            }
+            output.write(template.endFragments[ordinal]);
+        }
+    }
+
+    /**
+     * Buffered output of UTF-8 bytes, escaping text as XML character data.
+     */
+    private static class Utf8Output {
+        private final OutputStream outputStream;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position;
+
+        private Utf8Output(OutputStream outputStream) {
+            this.outputStream = outputStream;
+        }
+
+        void write(byte[] bytes) throws IOException {
+            if (bytes.length > buffer.length - position) {
+                flush();
+                if (bytes.length > buffer.length) {
+                    outputStream.write(bytes);
+                    return;
+                }
+            }
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        void writeEscaped(String text) throws IOException {
+            for (int i = 0; i < text.length(); i++) {
+                if (buffer.length - position < 8) {
+                    flush();
+                }
+                char c = text.charAt(i);
+                switch (c) {
+                    case '&':
+                        writeAscii("&amp;");
+                        break;
+                    case '<':
+                        writeAscii("&lt;");
+                        break;
+                    case '>':
+                        writeAscii("&gt;");
+                        break;
+                    default:
+                        if ((c < 0x20 && c != '\t' && c != '\n') || (c >= 0x7F && c <= 0x9F) || c == 0x2028) {
+                            // Control characters and line separators are written as character references
+                            writeAscii("&#" + (int) c + ";");
+                        } else if (c < 0x80) {
+                            buffer[position++] = (byte) c;
+                        } else if (c < 0x800) {
+                            buffer[position++] = (byte) (0xC0 | (c >> 6));
+                            buffer[position++] = (byte) (0x80 | (c & 0x3F));
+                        } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                                && Character.isLowSurrogate(text.charAt(i + 1))) {
+                            int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                            buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                            buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                            buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                            buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+                        } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                            // Unpaired surrogates are written as question marks, like the UTF-8 encoder does
+                            buffer[position++] = '?';
+                        } else {
+                            buffer[position++] = (byte) (0xE0 | (c >> 12));
+                            buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                            buffer[position++] = (byte) (0x80 | (c & 0x3F));
+                        }
+                        break;
+                }
+            }
+        }
+
+        private void writeAscii(String ascii) {
+            for (int i = 0; i < ascii.length(); i++) {
+                buffer[position++] = (byte) ascii.charAt(i);
+            }
+        }
+
+        void flush() throws IOException {
+            outputStream.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A PBCore template compiled for streaming output.
+ *
+ * Every node of the template is given an ordinal, its position in document order, with the document itself as
+ * ordinal 0. For each node the UTF-8 encoded markup is prepared in advance: start and end tags of elements, the
+ * empty tag used for elements without content, and the escaped text of text nodes and comments. Writing a record
+ * then only needs to copy these fragments and escape the record values.
+ */
+final class StreamingPBCoreTemplate {
+    static final byte[] XML_DECLARATION
+            = utf8("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>");
+
+    /** For each ordinal, the ordinal following the last node below it. */
+    final int[] subtreeEnds;
+    /** For each ordinal, whether the node is an element. */
+    final boolean[] elements;
+    /** For each ordinal, the start tag of an element, or the markup of any other node. */
+    final byte[][] startFragments;
+    /** For each ordinal, the end tag of an element. */
+    final byte[][] endFragments;
+    /** For each ordinal, the empty tag of an element. */
+    final byte[][] emptyFragments;
+
+    /**
+     * Compile a template.
+     *
+     * @param template The template document, which is only read.
+     */
+    StreamingPBCoreTemplate(Document template) {
+        List<Node> nodes = new ArrayList<Node>();
+        collectNodes(template, nodes);
+        int count = nodes.size();
+        subtreeEnds = new int[count];
+        elements = new boolean[count];
+        startFragments = new byte[count][];
+        endFragments = new byte[count][];
+        emptyFragments = new byte[count][];
+        for (int ordinal = 0; ordinal < count; ordinal++) {
+            Node node = nodes.get(ordinal);
+            int end = ordinal + 1;
+            while (end < count && isDescendant(nodes.get(end), node)) {
+                end++;
+            }
+            subtreeEnds[ordinal] = end;
+            switch (node.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    elements[ordinal] = true;
+                    StringBuilder startTag = new StringBuilder("<").append(node.getNodeName());
+                    NamedNodeMap attributes = node.getAttributes();
+                    for (int i = 0; i < attributes.getLength(); i++) {
+                        Node attribute = attributes.item(i);
+                        startTag.append(' ').append(attribute.getNodeName()).append("=\"");
+                        appendEscaped(startTag, attribute.getNodeValue(), true);
+                        startTag.append('"');
+                    }
+                    startFragments[ordinal] = utf8(startTag + ">");
+                    emptyFragments[ordinal] = utf8(startTag + "/>");
+                    endFragments[ordinal] = utf8("</" + node.getNodeName() + ">");
+                    break;
+                case Node.TEXT_NODE:
+                    StringBuilder text = new StringBuilder();
+                    appendEscaped(text, node.getNodeValue(), false);
+                    startFragments[ordinal] = utf8(text.toString());
+                    break;
+                case Node.CDATA_SECTION_NODE:
+                    startFragments[ordinal] = utf8("<![CDATA[" + node.getNodeValue() + "]]>");
+                    break;
+                case Node.COMMENT_NODE:
+                    startFragments[ordinal] = utf8("<!--" + node.getNodeValue() + "-->");
+                    break;
+                default:
+                    startFragments[ordinal] = new byte[0];
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Resolve a locator compiled from the template to an ordinal.
+     *
+     * @param locator The locator.
+     * @param contextOrdinal Ordinal of the node the locator is relative to.
+     * @return The ordinal of the located node.
+     */
+    int resolve(NodeLocator locator, int contextOrdinal) {
+        int ordinal = contextOrdinal;
+        for (int childIndex : locator.getChildIndexes()) {
+            ordinal++;
+            for (int i = 0; i < childIndex; i++) {
+                ordinal = subtreeEnds[ordinal];
+            }
+        }
+        return ordinal;
+    }
+
+    /**
+     * Get the number of nodes in the template, including the document.
+     *
+     * @return The number of ordinals.
+     */
+    int size() {
+        return subtreeEnds.length;
+    }
+
+    private static void collectNodes(Node node, List<Node> nodes) {
+        nodes.add(node);
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            collectNodes(child, nodes);
+        }
+    }
+
+    private static boolean isDescendant(Node node, Node ancestor) {
+        for (Node parent = node.getParentNode(); parent != null; parent = parent.getParentNode()) {
+            if (parent == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void appendEscaped(StringBuilder builder, String value, boolean attribute) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    builder.append("&amp;");
+                    break;
+                case '<':
+                    builder.append("&lt;");
+                    break;
+                case '>':
+                    builder.append("&gt;");
+                    break;
+                case '"':
+                    builder.append(attribute ? "&quot;" : "\"");
+                    break;
+                case '\r':
+                    builder.append("&#13;");
+                    break;
+                default:
+                    builder.append(c);
+                    break;
+            }
+        }
+    }
+
+    private static byte[] utf8(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not supported", e);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Map TV2 CSV files as they are delivered to an inbox directory, in a long running process.
+ *
+ * The inbox is polled for CSV files. A file is mapped once its size and modification time are unchanged since the
+ * previous poll, so files still being copied to the inbox are left alone. Files whose name starts with a dot are
+ * ignored, so a delivery can also be written under a hidden name and renamed when complete. Mapped files are moved to
+ * the subdirectory {@link #DONE} of the inbox, and files that could not be mapped, or whose changes could not be saved
+ * to the manifest or index, to {@link #FAILED}. A failed delivery does not stop the watcher. A file being mapped when
+ * the process is stopped, or that could not be moved, stays in the inbox, and is mapped again.
+ *
+ * The same mapper is used for all files, so the template, the converters and the worker threads are kept between
+ * files.
+ */
+public class Tv2InboxWatcher {
+    /** Subdirectory of the inbox mapped files are moved to. */
+    public static final String DONE = "done";
+
+    /** Subdirectory of the inbox files that could not be mapped are moved to. */
+    public static final String FAILED = "failed";
+
+    private static final String REJECTS_SUFFIX = ".rejects";
+
+    private final File inbox;
+    private final Tv2PBCoreMapper tv2PBCoreMapper;
+    private final OutputSink outputSink;
+    private final MappingMetrics metrics;
+    /** Size and modification time of the files found in the inbox by the previous poll. */
+    private final Map<File, String> deliveries = new HashMap<File, String>();
+    private File rejectsDirectory;
+    private OutputManifest manifest;
+    private OutputIndex outputIndex;
+
+    /**
+     * Initialise a watcher.
+     *
+     * @param inbox The directory CSV files are delivered to.
+     * @param tv2PBCoreMapper The mapper to map the files with. The metrics of each file are recorded in the metrics
+     * the mapper has when the watcher is created.
+     * @param outputSink The sink to write PBCore files to. It is not closed.
+     */
+    public Tv2InboxWatcher(File inbox, Tv2PBCoreMapper tv2PBCoreMapper, OutputSink outputSink) {
+        this.inbox = inbox;
+        this.tv2PBCoreMapper = tv2PBCoreMapper;
+        this.outputSink = outputSink;
+        this.metrics = tv2PBCoreMapper.getMetrics();
+    }
+
+    /**
+     * Log the rejected rows of each file to a reject log in the given directory, named after the file. Reject logs of
+     * files without rejected rows are removed. By default rejected rows are only reported on standard error.
+     *
+     * @param rejectsDirectory The directory, or null.
+     */
+    public void setRejectsDirectory(File rejectsDirectory) {
+        this.rejectsDirectory = rejectsDirectory;
+    }
+
+    /**
+     * Set the manifest in front of the output sink. It is saved after each file, and the changes of each file are
+     * listed on standard output. Files are never considered removed.
+     *
+     * @param manifest The manifest, or null.
+     */
+    public void setManifest(OutputManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * Set the index the mapper adds PBCore files to. It is saved after each file, and the duplicates found in each
+     * file are reported on standard error.
+     *
+     * @param outputIndex The index, or null.
+     */
+    public void setOutputIndex(OutputIndex outputIndex) {
+        this.outputIndex = outputIndex;
+    }
+
+    /**
+     * Poll the inbox until interrupted.
+     *
+     * @param pollInterval Time between polls, in milliseconds.
+     * @throws IOException On trouble listing the inbox.
+     * @throws InterruptedException When interrupted.
+     */
+    public void run(long pollInterval) throws IOException, InterruptedException {
+        while (true) {
+            poll();
+            Thread.sleep(pollInterval);
+        }
+    }
+
+    /**
+     * Map the files in the inbox that are unchanged since the previous poll, in order of name.
+     *
+     * @return The number of files mapped or moved to {@link #FAILED}.
+     * @throws IOException On trouble listing the inbox.
+     */
+    public int poll() throws IOException {
+        File[] files = inbox.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && !file.getName().startsWith(".") && file.getName().endsWith(".csv");
+            }
+        });
+        if (files == null) {
+            throw new IOException("Unable to list inbox " + inbox);
+        }
+        Arrays.sort(files);
+        Map<File, String> previousDeliveries = new HashMap<File, String>(deliveries);
+        deliveries.clear();
+        int processed = 0;
+        for (File file : files) {
+            String signature = file.length() + ":" + file.lastModified();
+            if (!signature.equals(previousDeliveries.get(file))) {
+                // New or still being written, check again at the next poll
+                deliveries.put(file, signature);
+                continue;
+            }
+            process(file);
+            processed++;
+        }
+        return processed;
+    }
+
+    private void process(File csvFile) {
+        boolean mapped = false;
+        try {
+            map(csvFile);
+            mapped = true;
+        } catch (Exception e) {
+            reportFailure(csvFile, e);
+        }
+        try {
+            // Also record the files written before a failure
+            save();
+        } catch (Exception e) {
+            mapped = false;
+            reportFailure(csvFile, e);
+        }
+        try {
+            move(csvFile, new File(inbox, mapped ? DONE : FAILED));
+        } catch (IOException e) {
+            reportFailure(csvFile, e);
+        }
+    }
+
+    private void map(File csvFile) throws IOException {
+        File rejectsFile = null;
+        RejectLog rejectLog = null;
+        if (rejectsDirectory != null) {
+            rejectsDirectory.mkdirs();
+            rejectsFile = new File(rejectsDirectory, csvFile.getName() + REJECTS_SUFFIX);
+            rejectLog = new RejectLog(rejectsFile);
+        }
+        MappingMetrics fileMetrics = new MappingMetrics(metrics);
+        tv2PBCoreMapper.setMetrics(fileMetrics);
+        tv2PBCoreMapper.setRejectLog(rejectLog);
+        long start = System.nanoTime();
+        try {
+            tv2PBCoreMapper.mapCsvDataToPBCoreFiles(csvFile, outputSink);
+            System.err.println(String.format(Locale.ROOT, "%s: %d mapped, %d failed in %.1f s", csvFile.getName(),
+                                             fileMetrics.getRecords(), fileMetrics.getFailures(),
+                                             (System.nanoTime() - start) / 1e9));
+        } finally {
+            tv2PBCoreMapper.setRejectLog(null);
+            tv2PBCoreMapper.setMetrics(metrics);
+            if (rejectLog != null) {
+                rejectLog.close();
+                if (fileMetrics.getFailures() == 0) {
+                    // Only keep reject logs of files with rejected rows
+                    rejectsFile.delete();
+                }
+            }
+        }
+    }
+
+    private void save() throws IOException {
+        if (outputIndex != null) {
+            outputIndex.save();
+            outputIndex.writeDuplicates(new OutputStreamWriter(System.err, "UTF-8"));
+            outputIndex.clearDuplicates();
+        }
+        if (manifest != null) {
+            manifest.save();
+            manifest.writeChanges(new OutputStreamWriter(System.out, "UTF-8"));
+            manifest.clearChanges();
+        }
+    }
+
+    private static void reportFailure(File csvFile, Exception e) {
+        //TODO logging
+        System.err.println(csvFile.getName() + ": failed: " + e);
+        e.printStackTrace(System.err);
+    }
+
+    private static void move(File file, File directory) throws IOException {
+        if (!directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        File target = new File(directory, file.getName());
+        // A file delivered again replaces the file delivered before
+        if (!file.renameTo(target) && !(target.delete() && file.renameTo(target))) {
+            throw new IOException("Unable to move " + file + " to " + directory);
+        }
+    }
+}
@@ -1,35 +1,42 @@
 package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-
-import dk.statsbiblioteket.util.Files;
-import dk.statsbiblioteket.util.xml.DOM;
-import dk.statsbiblioteket.util.xml.XPathSelector;
-
-import javax.xml.transform.TransformerException;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.InputStreamReader;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.List;
-import java.util.TimeZone;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Map all tv2 reklamefilm data to PBCore.
+ *
+ * Rows can be mapped by a pool of worker threads. Rows are still read, and files written, in the order of the CSV
+ * data, so the result is the same regardless of the number of threads.
  */
 public class Tv2PBCoreMapper {
-    private static final SimpleDateFormat ALTERNATIVE_INPUT_DATE_FORMAT = new SimpleDateFormat("yyyy-MM");
-    private static final SimpleDateFormat ALTERNATIVE_OUTPUT_DATE_FORMAT = new SimpleDateFormat("yyyy-MM");
-    private static final SimpleDateFormat INPUT_DATE_FORMAT = new SimpleDateFormat("yyMMdd");
-    private static final SimpleDateFormat OUTPUT_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-ddZ");
-    private static final SimpleDateFormat DURATION_FORMAT = new SimpleDateFormat("HH:mm:ss");
-    static {
-        DURATION_FORMAT.setTimeZone(TimeZone.getTimeZone("UTC"));
+    /** Number of rows read ahead per worker thread. */
+    private static final int ROWS_PER_THREAD = 4;
+
+    private static class MappedRow {
+        final int lineNumber;
+        final List<String> row;
+        final Future<byte[]> pbcore;
+
+        private MappedRow(int lineNumber, List<String> row, Future<byte[]> pbcore) {
+            this.lineNumber = lineNumber;
+            this.row = row;
+            this.pbcore = pbcore;
+        }
     }
 
     private static class MappingTuple {
@@ -38,6 +45,7 @@ public class Tv2PBCoreMapper {
         final int cellindex;
         final String xpath;
         final Type type;
+        NodeLocator locator;
 
         private MappingTuple(int cellindex, String xpath, Type type) {
             this.cellindex = cellindex;
@@ -46,6 +54,8 @@ public class Tv2PBCoreMapper {
         }
     }
 
+    private final PBCoreTemplate pbcoreTemplate = PBCoreTemplate.getTemplate("pbcoretv2template.xml");
+
     private final List<MappingTuple> pbcoreTv2TemplateMappingTuples = new ArrayList<MappingTuple>(Arrays.asList(
             new MappingTuple(1, "/p:PBCoreDescriptionDocument/p:pbcoreSubject[1]/p:subject",
                              Tv2PBCoreMapper.MappingTuple.Type.STRING),
@@ -76,67 +86,342 @@ public class Tv2PBCoreMapper {
             new MappingTuple(11, "/p:PBCoreDescriptionDocument/p:pbcoreInstantiation/p:formatLocation",
                              Tv2PBCoreMapper.MappingTuple.Type.FILE)));
 
+    private final int threads;
+    private final ValueConverter valueConverter = new ValueConverter();
+    private OutputEngine outputEngine = OutputEngine.DOM;
+    private MappingMetrics metrics = new MappingMetrics();
+    private Set<Integer> lineNumbers;
+    private RejectLog rejectLog;
+    private PBCoreValidator validator;
+    private OutputIndex outputIndex;
+    private OutputLayout outputLayout = OutputLayout.FLAT;
+    private int parserThreads = 1;
+    private ExecutorService executorService;
+
+    /**
+     * Initialise the mapper, mapping rows in the calling thread.
+     *
+     * @throws IllegalStateException If the template does not match the mapping table.
+     */
+    public Tv2PBCoreMapper() {
+        this(1);
+    }
+
+    /**
+     * Initialise the mapper, resolving the mapping table against the PBCore template.
+     *
+     * @param threads Number of threads to map rows with. With one thread, rows are mapped in the calling thread.
+     * @throws IllegalStateException If the template does not match the mapping table.
+     */
+    public Tv2PBCoreMapper(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of threads must be positive, was " + threads);
+        }
+        this.threads = threads;
+        for (MappingTuple pbcoreTv2TemplateMappingTuple : pbcoreTv2TemplateMappingTuples) {
+            pbcoreTv2TemplateMappingTuple.locator = pbcoreTemplate.compileLocator(pbcoreTv2TemplateMappingTuple.xpath);
+        }
+    }
+
+    /**
+     * Set how PBCore documents are built and written. Defaults to {@link OutputEngine#DOM}.
+     *
+     * @param outputEngine The output engine.
+     */
+    public void setOutputEngine(OutputEngine outputEngine) {
+        this.outputEngine = outputEngine;
+    }
+
+    /**
+     * Set the metrics to record the mapping stages in. By default the mapper has metrics of its own.
+     *
+     * @param metrics The metrics.
+     */
+    public void setMetrics(MappingMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Get the metrics the mapping stages are recorded in.
+     *
+     * @return The metrics.
+     */
+    public MappingMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Only map the rows starting on the given lines, such as the rows rejected by a previous run. By default all rows
+     * are mapped.
+     *
+     * @param lineNumbers The 1-based line numbers of the rows to map, or null to map all rows.
+     * @see RejectLog#readIdentifiers(File)
+     */
+    public void setLineNumbers(Set<Integer> lineNumbers) {
+        this.lineNumbers = lineNumbers;
+    }
+
+    /**
+     * Set the log to write rows that could not be mapped to, identified by their line number. By default rows that
+     * could not be mapped are only reported on standard error.
+     *
+     * @param rejectLog The reject log, or null.
+     */
+    public void setRejectLog(RejectLog rejectLog) {
+        this.rejectLog = rejectLog;
+    }
+
+    /**
+     * Validate each PBCore document before it is written. Documents that are not valid are handled like rows that
+     * could not be mapped. By default documents are not validated.
+     *
+     * @param validator The validator, or null.
+     */
+    public void setValidator(PBCoreValidator validator) {
+        this.validator = validator;
+    }
+
+    /**
+     * Set the index to add the PBCore file of each row to. By default no index is kept.
+     *
+     * @param outputIndex The index, or null.
+     */
+    public void setOutputIndex(OutputIndex outputIndex) {
+        this.outputIndex = outputIndex;
+    }
+
+    /**
+     * Set the layout of the PBCore files in the output. The {@link OutputLayout#DATE} layout uses the month of the
+     * row. By default all files are written to the output directory itself.
+     *
+     * @param outputLayout The layout.
+     */
+    public void setOutputLayout(OutputLayout outputLayout) {
+        this.outputLayout = outputLayout;
+    }
+
+    /**
+     * Set the number of threads to parse CSV files with. With more than one thread, CSV files are memory mapped and
+     * parsed in chunks by a {@link MappedCsvParser}. Defaults to parsing in the calling thread.
+     *
+     * @param parserThreads Number of threads to parse with.
+     */
+    public void setParserThreads(int parserThreads) {
+        if (parserThreads < 1) {
+            throw new IllegalArgumentException("Number of threads must be positive, was " + parserThreads);
+        }
+        this.parserThreads = parserThreads;
+    }
+
+    /**
+     * Map rows with the threads of the given executor, instead of starting threads for each CSV file. This keeps the
+     * worker threads of a long running process that maps many files. By default threads are started for each file.
+     *
+     * @param executorService The executor to map rows with, or null. It is not shut down by the mapper.
+     */
+    public void setExecutorService(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
 
     public void mapCsvDataToPBCoreFiles(File csvFile, File outputdir) throws IOException {
-        List<List<String>> csvData = CsvParser.readCsvData(Files.loadString(csvFile));
-        mapCsvDataToPBCoreFiles(csvData, outputdir);
+        DirectoryOutputSink outputSink = new DirectoryOutputSink(outputdir);
+        try {
+            mapCsvDataToPBCoreFiles(csvFile, outputSink);
+        } finally {
+            outputSink.close();
+        }
     }
 
-    private void mapCsvDataToPBCoreFiles(List<List<String>> csvData, File outputdir) {
-        for (List<String> row : csvData) {
-            try {
-                mapCsvRowToPBCoreFile(row, outputdir);
-            } catch (Exception e) {
-                //TODO logging
-                e.printStackTrace(System.err);
+    /**
+     * Map all rows of a CSV file to PBCore files.
+     *
+     * @param csvFile The UTF-8 encoded CSV file.
+     * @param outputSink The sink to write PBCore files to. It is not closed.
+     * @throws IOException On trouble reading the CSV file or writing PBCore files.
+     */
+    public void mapCsvDataToPBCoreFiles(File csvFile, OutputSink outputSink) throws IOException {
+        CsvRowReader csvParser;
+        if (parserThreads == 1) {
+            csvParser = new CsvParser(new InputStreamReader(new FileInputStream(csvFile), "UTF-8"));
+        } else {
+            csvParser = new MappedCsvParser(csvFile, parserThreads);
+        }
+        try {
+            mapCsvDataToPBCoreFiles(csvParser, outputSink);
+        } finally {
+            csvParser.close();
+        }
+    }
+
+    private void mapCsvDataToPBCoreFiles(CsvRowReader csvParser, OutputSink outputSink) throws IOException {
+        if (threads == 1) {
+            List<String> row;
+            while ((row = readRow(csvParser)) != null) {
+                int lineNumber = csvParser.getLineNumber();
+                if (lineNumbers != null && !lineNumbers.contains(lineNumber)) {
+                    continue;
+                }
+                try {
+                    writePBCoreFile(row, mapCsvRowToPBCore(row), outputSink);
+                } catch (Exception e) {
+                    reportFailure(lineNumber, row, e, outputSink);
+                }
+            }
+            return;
+        }
+        ExecutorService executorService = this.executorService;
+        if (executorService == null) {
+            executorService = Executors.newFixedThreadPool(threads);
+        }
+        Queue<MappedRow> mappedRows = new ArrayDeque<MappedRow>();
+        try {
+            List<String> row;
+            while ((row = readRow(csvParser)) != null) {
+                int lineNumber = csvParser.getLineNumber();
+                if (lineNumbers != null && !lineNumbers.contains(lineNumber)) {
+                    continue;
+                }
+                final List<String> currentRow = row;
+                mappedRows.add(new MappedRow(lineNumber, row, executorService.submit(new Callable<byte[]>() {
+                    public byte[] call() throws Exception {
+                        return mapCsvRowToPBCore(currentRow);
+                    }
+                })));
+                if (mappedRows.size() >= threads * ROWS_PER_THREAD) {
+                    writePBCoreFile(mappedRows.remove(), outputSink);
+                }
+            }
+            while (!mappedRows.isEmpty()) {
+                writePBCoreFile(mappedRows.remove(), outputSink);
+            }
+        } finally {
+            if (executorService != this.executorService) {
+                executorService.shutdownNow();
+            } else {
+                // Rows left after a failure are not written, so stop mapping them
+                for (MappedRow mappedRow : mappedRows) {
+                    mappedRow.pbcore.cancel(true);
+                }
+            }
+        }
+    }
+
+    private List<String> readRow(CsvRowReader csvParser) throws IOException {
+        long start = metrics.start();
+        List<String> row = csvParser.readRow();
+        if (row != null) {
+            metrics.record(MappingMetrics.PARSE, start);
+        }
+        return row;
+    }
+
+    private void writePBCoreFile(MappedRow mappedRow, OutputSink outputSink) throws IOException {
+        try {
+            writePBCoreFile(mappedRow.row, mappedRow.pbcore.get(), outputSink);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while mapping line " + mappedRow.lineNumber);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
             }
+            reportFailure(mappedRow.lineNumber, mappedRow.row, (Exception) e.getCause(), outputSink);
+        } catch (Exception e) {
+            reportFailure(mappedRow.lineNumber, mappedRow.row, e, outputSink);
         }
     }
 
-    private void mapCsvRowToPBCoreFile(List<String> row, File outputdir)
-            throws ParseException, IOException, TransformerException {
+    private void reportFailure(int lineNumber, List<String> row, Exception e, OutputSink outputSink) {
+        //TODO logging
+        System.err.println("Failed to map line " + lineNumber + (row.size() > 11 ? " (" + row.get(11) + ")" : "")
+                                   + ": " + e);
+        e.printStackTrace(System.err);
+        metrics.recordFailed();
+        if (rejectLog != null) {
+            rejectLog.reject(lineNumber, e);
+        }
+        if (row.size() > 11) {
+            outputSink.retain(getPath(row));
+            if (outputIndex != null) {
+                outputIndex.retain(row.get(11));
+            }
+        }
+    }
+
+    private byte[] mapCsvRowToPBCore(List<String> row) throws MappingException, IOException {
+        long start = metrics.start();
         // Initiate pbcore template
-        Document pbcoreDocument = DOM
-                .streamToDOM(getClass().getClassLoader().getResourceAsStream("pbcoretv2template.xml"), true);
-        XPathSelector xPath = DOM.createXPathSelector("p", "http://www.pbcore.org/PBCore/PBCoreNamespace.html");
+        PBCoreDocument pbcoreDocument = pbcoreTemplate.createDocument(outputEngine);
+        start = metrics.record(MappingMetrics.INSTANTIATE, start);
         // Inject data
         for (MappingTuple pbcoreTv2TemplateMappingTuple : pbcoreTv2TemplateMappingTuples) {
-            String value = row.get(pbcoreTv2TemplateMappingTuple.cellindex);
-            switch (pbcoreTv2TemplateMappingTuple.type) {
-                case DATE:
-                    if (value != null && !value.isEmpty()) {
-                        value = OUTPUT_DATE_FORMAT.format(INPUT_DATE_FORMAT.parse(String.format("%06d", Integer.parseInt(value))));
-                    } else {
-                        // Fall back to month date
-                        value = ALTERNATIVE_OUTPUT_DATE_FORMAT.format(ALTERNATIVE_INPUT_DATE_FORMAT.parse(row.get(0)));
-                    }
-                    break;
-                case DURATION:
-                    value = DURATION_FORMAT.format(new Date(Long.parseLong(value) * 1000L));
-                    break;
-                case FILE:
-                    value += ".mpg";
-                    break;
-                case LANGUAGE:
-                    if (value.equals("Dansk")) {
-                        value = "dan";
-                    } else if (value.equals("Ukendt")) {
-                        value = "und";
-                    } else {
-                        value = "mis";
-                        // TODO add more languages, what to do with "Udenlandsk" and "Versioneret"
-                    }
-                    break;
-                case LANGUAGEEXTENSION:
-                    value = "locationoforiginalproduction: " + value;
-                default:
-                    break;
+            try {
+                String value = row.get(pbcoreTv2TemplateMappingTuple.cellindex);
+                switch (pbcoreTv2TemplateMappingTuple.type) {
+                    case DATE:
+                        if (value != null && !value.isEmpty()) {
+                            value = valueConverter.convertShortDate(value);
+                        } else {
+                            // Fall back to month date
+                            value = valueConverter.convertMonth(row.get(0));
+                        }
+                        break;
+                    case DURATION:
+                        value = valueConverter.convertDuration(Long.parseLong(value));
+                        break;
+                    case FILE:
+                        value += ".mpg";
+                        break;
+                    case LANGUAGE:
+                        value = valueConverter.convertLanguage(value);
+                        break;
+                    case LANGUAGEEXTENSION:
+                        value = valueConverter.convertExtension("locationoforiginalproduction", value);
+                        break;
+                    default:
+                        break;
+                }
+                pbcoreDocument.setText(pbcoreTv2TemplateMappingTuple.locator, value);
+            } catch (Exception e) {
+                throw new MappingException(pbcoreTv2TemplateMappingTuple.xpath, e);
             }
-            Node node = xPath.selectNode(pbcoreDocument, pbcoreTv2TemplateMappingTuple.xpath);
-            node.setTextContent(value);
         }
+        start = metrics.record(MappingMetrics.INJECT, start);
 
+        ByteArrayOutputStream pbcore = new ByteArrayOutputStream();
+        pbcoreDocument.writeTo(pbcore);
+        byte[] bytes = pbcore.toByteArray();
+        start = metrics.record(MappingMetrics.SERIALISE, start);
+        if (validator != null) {
+            validator.validate(bytes);
+            metrics.record(MappingMetrics.VALIDATE, start);
+        }
+        return bytes;
+    }
+
+    private void writePBCoreFile(List<String> row, byte[] pbcore, OutputSink outputSink) throws IOException {
         //Write pbcore to template with file name
-        new FileOutputStream(new File(outputdir, row.get(11) + ".xml")).write(DOM.domToString(pbcoreDocument, true).getBytes());
+        long start = metrics.start();
+        String path = getPath(row);
+        // Hash the file once, for both the index and a manifest
+        String checksum = outputIndex != null ? OutputManifest.md5(pbcore) : null;
+        outputSink.write(path, pbcore, checksum);
+        if (outputIndex != null) {
+            outputIndex.add(row.get(11), path, row.get(11) + ".mpg", pbcore.length, checksum);
+        }
+        metrics.record(MappingMetrics.WRITE, start);
+        metrics.recordMapped();
+    }
+
+    private String getPath(List<String> row) {
+        String month = null;
+        if (outputLayout == OutputLayout.DATE) {
+            try {
+                month = valueConverter.convertMonth(row.get(0));
+            } catch (IllegalArgumentException e) {
+                // Rows with an invalid month are placed with the undated rows
+            }
+        }
+        return outputLayout.getPath(row.get(11) + ".xml", month);
     }
 }
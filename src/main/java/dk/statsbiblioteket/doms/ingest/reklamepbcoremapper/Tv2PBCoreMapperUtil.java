@@ -1,24 +1,354 @@
 package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
 
 import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 
 /**
  * Map a file with a utf-8 encoded csv file with TV2 tv commercial metadata to PBCore files.
+ *
+ * Given a directory, or a file name pattern with the wildcards * and ?, all matching CSV files are mapped in one run,
+ * and a summary is printed for each file. In that case, rejected rows are logged to a directory with a reject log per
+ * CSV file, named after the CSV file.
+ *
+ * Files that are no longer written are only reported as removed by the manifest, and dropped from the index, after a
+ * run over a directory or pattern: a single CSV file only holds part of the commercials.
+ *
+ * With --watch, the input is an inbox directory, which is polled for new CSV files until the process is stopped. See
+ * {@link Tv2InboxWatcher}. The PBCore files are then written to the output directory, not to an archive.
  */
 public class Tv2PBCoreMapperUtil {
+    private static final String REJECTS_SUFFIX = ".rejects";
+
+    /** Creates a mapper per CSV file, with the settings shared by all files. */
+    private static class MapperFactory {
+        int threads;
+        int parserThreads;
+        OutputEngine outputEngine;
+        PBCoreValidator validator;
+        OutputIndex outputIndex;
+        OutputLayout outputLayout;
+
+        Tv2PBCoreMapper newMapper(MappingMetrics metrics) {
+            Tv2PBCoreMapper tv2PBCoreMapper = new Tv2PBCoreMapper(threads);
+            tv2PBCoreMapper.setParserThreads(parserThreads);
+            tv2PBCoreMapper.setOutputEngine(outputEngine);
+            tv2PBCoreMapper.setValidator(validator);
+            tv2PBCoreMapper.setOutputIndex(outputIndex);
+            tv2PBCoreMapper.setOutputLayout(outputLayout);
+            tv2PBCoreMapper.setMetrics(metrics);
+            return tv2PBCoreMapper;
+        }
+    }
+
     public static void main(String[] args) throws Exception {
-        if (args.length < 1) {
-            System.err.println("Usage: java " + Tv2PBCoreMapperUtil.class.toString() + " <csvfile> [outputdir]");
+        CommandLineArguments arguments = null;
+        try {
+            arguments = new CommandLineArguments(args, new String[]{
+                    "threads", "filethreads", "parserthreads", "engine", "schema", "manifest", "index", "layout",
+                    "archive", "metrics", "progress", "rejects", "rerun", "watch"}, new String[0]);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+        }
+        if (arguments == null || arguments.getPositionalArgument(0) == null
+                || (arguments.hasOption("watch") && (arguments.hasOption("rerun") || arguments.hasOption("archive")))) {
+            System.err.println("Usage: java " + Tv2PBCoreMapperUtil.class.toString()
+                                       + " [--threads N] [--filethreads N] [--parserthreads N]"
+                                       + " [--engine dom|streaming] [--schema <xsdfile>]"
+                                       + " [--manifest <manifestfile>] [--index <indexfile>]"
+                                       + " [--layout flat|hash|date] [--archive <file.tar|file.tar.gz|file.zip>]"
+                                       + " [--metrics <jsonfile>] [--progress <seconds>]"
+                                       + " [--rejects <rejectsfile|rejectsdir>] [--rerun <rejectsfile|rejectsdir>]"
+                                       + " [--watch <seconds>] <csvfile|csvdir|pattern|inboxdir> [outputdir]");
+            if (arguments != null && arguments.hasOption("watch")) {
+                // An archive is only complete once closed, which a process polling until stopped never does
+                System.err.println("--watch cannot be combined with --rerun or --archive");
+            }
             System.exit(1);
         }
 
         File outputdir;
-        if (args.length < 2 || args[1] == null || args[1].isEmpty()) {
+        if (arguments.getPositionalArgument(1) == null) {
             outputdir = new File(".");
         } else {
-            outputdir = new File(args[1]);
+            outputdir = new File(arguments.getPositionalArgument(1));
+        }
+        MapperFactory mapperFactory = new MapperFactory();
+        mapperFactory.threads = arguments.getIntOption("threads", 1);
+        mapperFactory.parserThreads = arguments.getIntOption("parserthreads", 1);
+        mapperFactory.outputEngine = OutputEngine.DOM;
+        if (arguments.hasOption("engine")) {
+            mapperFactory.outputEngine = OutputEngine.valueOf(arguments.getOption("engine").toUpperCase());
+        }
+        // Compile the schema once, for all files and threads
+        if (arguments.hasOption("schema")) {
+            mapperFactory.validator = new PBCoreValidator(new File(arguments.getOption("schema")));
+        }
+        if (arguments.hasOption("index")) {
+            mapperFactory.outputIndex = new OutputIndex(new File(arguments.getOption("index")));
+        }
+        mapperFactory.outputLayout = OutputLayout.FLAT;
+        if (arguments.hasOption("layout")) {
+            mapperFactory.outputLayout = OutputLayout.valueOf(arguments.getOption("layout").toUpperCase());
+        }
+        File input = new File(arguments.getPositionalArgument(0));
+        List<File> csvFiles = findCsvFiles(input);
+        if (csvFiles != null && csvFiles.isEmpty() && !arguments.hasOption("watch")) {
+            // Most likely a mistyped directory or pattern, which must not be taken for a run without commercials
+            System.err.println("No CSV files found: " + input);
+            System.exit(1);
+        }
+        // Write to an archive or the output directory, with a manifest only writing changed files
+        OutputSink outputSink;
+        if (arguments.hasOption("archive")) {
+            outputSink = ArchiveOutputSink.create(new File(arguments.getOption("archive")));
+        } else {
+            outputdir.mkdirs();
+            outputSink = new DirectoryOutputSink(outputdir);
+        }
+        OutputManifest manifest = null;
+        if (arguments.hasOption("manifest")) {
+            manifest = new OutputManifest(new File(arguments.getOption("manifest")), outputSink);
+            outputSink = manifest;
+        }
+        // Report progress on standard error, as standard output lists the changes
+        MappingMetrics metrics = new MappingMetrics();
+        if (arguments.hasOption("progress")) {
+            metrics.startProgressReports(System.err, arguments.getIntOption("progress", 60));
+        }
+        if (arguments.hasOption("watch")) {
+            try {
+                watch(input, mapperFactory, arguments, outputSink, manifest, metrics);
+            } finally {
+                metrics.stopProgressReports();
+                outputSink.close();
+            }
+            return;
+        }
+        boolean success = true;
+        try {
+            if (csvFiles == null) {
+                mapCsvFile(mapperFactory.newMapper(metrics), input, optionalFile(arguments, "rerun"),
+                           optionalFile(arguments, "rejects"), outputSink);
+            } else {
+                success = mapCsvFiles(csvFiles, mapperFactory, arguments, outputSink, metrics);
+            }
+        } finally {
+            metrics.stopProgressReports();
+            outputSink.close();
+        }
+        if (arguments.hasOption("metrics")) {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(arguments.getOption("metrics")), "UTF-8");
+            try {
+                metrics.writeJson(writer);
+            } finally {
+                writer.close();
+            }
+        }
+        // Only a run over all CSV files, mapping all rows, sees every file that should still exist
+        boolean complete = csvFiles != null && !arguments.hasOption("rerun") && success;
+        // Report identifiers mapped to more than one file on standard error
+        OutputIndex outputIndex = mapperFactory.outputIndex;
+        if (outputIndex != null) {
+            if (complete) {
+                outputIndex.removeUnseen();
+            }
+            outputIndex.save();
+            outputIndex.writeDuplicates(new OutputStreamWriter(System.err, "UTF-8"));
+        }
+        // List the changes on standard output
+        if (manifest != null) {
+            if (complete) {
+                // Files of other CSV files, of rows not mapped in a re-run, or in a file that failed, are not removed
+                manifest.removeUnseen();
+            }
+            manifest.save();
+            manifest.writeChanges(new OutputStreamWriter(System.out, "UTF-8"));
+        }
+        if (!success) {
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Find the CSV files to map, if more than one file may be given.
+     *
+     * @param input A CSV file, a directory of CSV files, or a file name pattern with the wildcards * and ?.
+     * @return The CSV files in the directory or matching the pattern, sorted by name, or null if the input is a
+     * single file. The list is empty if the directory does not exist.
+     */
+    private static List<File> findCsvFiles(File input) {
+        FileFilter filter;
+        File directory;
+        if (input.isDirectory()) {
+            directory = input;
+            filter = new FileFilter() {
+                public boolean accept(File file) {
+                    return file.isFile() && file.getName().endsWith(".csv");
+                }
+            };
+        } else if (input.getName().contains("*") || input.getName().contains("?")) {
+            directory = input.getAbsoluteFile().getParentFile();
+            StringBuilder regex = new StringBuilder();
+            for (char c : input.getName().toCharArray()) {
+                if (c == '*') {
+                    regex.append(".*");
+                } else if (c == '?') {
+                    regex.append('.');
+                } else {
+                    regex.append(Pattern.quote(Character.toString(c)));
+                }
+            }
+            final Pattern pattern = Pattern.compile(regex.toString());
+            filter = new FileFilter() {
+                public boolean accept(File file) {
+                    return file.isFile() && pattern.matcher(file.getName()).matches();
+                }
+            };
+        } else {
+            return null;
+        }
+        File[] files = directory.listFiles(filter);
+        if (files == null) {
+            return new ArrayList<File>();
+        }
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    private static File optionalFile(CommandLineArguments arguments, String option) {
+        return arguments.hasOption(option) ? new File(arguments.getOption(option)) : null;
+    }
+
+    /**
+     * Map several CSV files in parallel, and print a summary for each file on standard error. A file that cannot be
+     * read is reported, and the remaining files are still mapped.
+     *
+     * @return Whether all files were read.
+     */
+    private static boolean mapCsvFiles(List<File> csvFiles, final MapperFactory mapperFactory,
+                                       CommandLineArguments arguments, final OutputSink outputSink,
+                                       final MappingMetrics metrics)
+            throws InterruptedException {
+        final File rerunDirectory = optionalFile(arguments, "rerun");
+        final File rejectsDirectory = optionalFile(arguments, "rejects");
+        if (rejectsDirectory != null) {
+            rejectsDirectory.mkdirs();
+        }
+        ExecutorService executorService = Executors.newFixedThreadPool(arguments.getIntOption("filethreads", 1));
+        try {
+            List<Future<String>> summaries = new ArrayList<Future<String>>();
+            for (final File csvFile : csvFiles) {
+                summaries.add(executorService.submit(new Callable<String>() {
+                    public String call() throws IOException {
+                        File rerunFile = null;
+                        if (rerunDirectory != null) {
+                            rerunFile = new File(rerunDirectory, csvFile.getName() + REJECTS_SUFFIX);
+                            if (!rerunFile.exists()) {
+                                // No rows of this file were rejected
+                                return null;
+                            }
+                        }
+                        File rejectsFile = null;
+                        if (rejectsDirectory != null) {
+                            rejectsFile = new File(rejectsDirectory, csvFile.getName() + REJECTS_SUFFIX);
+                        }
+                        MappingMetrics fileMetrics = new MappingMetrics(metrics);
+                        long start = System.nanoTime();
+                        mapCsvFile(mapperFactory.newMapper(fileMetrics), csvFile, rerunFile, rejectsFile, outputSink);
+                        if (rejectsFile != null && fileMetrics.getFailures() == 0) {
+                            // Only keep reject logs of files with rejected rows
+                            rejectsFile.delete();
+                        }
+                        return String.format(Locale.ROOT, "%s: %d mapped, %d failed in %.1f s", csvFile.getName(),
+                                             fileMetrics.getRecords(), fileMetrics.getFailures(),
+                                             (System.nanoTime() - start) / 1e9);
+                    }
+                }));
+            }
+            boolean success = true;
+            for (int i = 0; i < summaries.size(); i++) {
+                try {
+                    String summary = summaries.get(i).get();
+                    if (summary != null) {
+                        System.err.println(summary);
+                    }
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    success = false;
+                    //TODO logging
+                    System.err.println(csvFiles.get(i).getName() + ": failed: " + e.getCause());
+                    e.getCause().printStackTrace(System.err);
+                }
+            }
+            System.err.println(csvFiles.size() + " files: " + metrics.getRecords() + " mapped, "
+                                       + metrics.getFailures() + " failed");
+            return success;
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Map the CSV files delivered to an inbox until the process is stopped, with one mapper and its worker threads.
+     */
+    private static void watch(File inbox, MapperFactory mapperFactory, CommandLineArguments arguments,
+                              OutputSink outputSink, OutputManifest manifest, MappingMetrics metrics)
+            throws IOException, InterruptedException {
+        if (!inbox.isDirectory()) {
+            throw new IOException("Inbox " + inbox + " is not a directory");
+        }
+        Tv2PBCoreMapper tv2PBCoreMapper = mapperFactory.newMapper(metrics);
+        ExecutorService executorService = null;
+        if (mapperFactory.threads > 1) {
+            executorService = Executors.newFixedThreadPool(mapperFactory.threads);
+            tv2PBCoreMapper.setExecutorService(executorService);
+        }
+        try {
+            Tv2InboxWatcher watcher = new Tv2InboxWatcher(inbox, tv2PBCoreMapper, outputSink);
+            watcher.setRejectsDirectory(optionalFile(arguments, "rejects"));
+            watcher.setManifest(manifest);
+            watcher.setOutputIndex(mapperFactory.outputIndex);
+            watcher.run(arguments.getIntOption("watch", 5) * 1000L);
+        } finally {
+            if (executorService != null) {
+                executorService.shutdownNow();
+            }
+        }
+    }
+
+    private static void mapCsvFile(Tv2PBCoreMapper tv2PBCoreMapper, File csvFile, File rerunFile, File rejectsFile,
+                                   OutputSink outputSink) throws IOException {
+        // Only map the rows rejected by a previous run, which may be logged to the same file again
+        if (rerunFile != null) {
+            tv2PBCoreMapper.setLineNumbers(RejectLog.readIdentifiers(rerunFile));
+        }
+        RejectLog rejectLog = null;
+        if (rejectsFile != null) {
+            rejectLog = new RejectLog(rejectsFile);
+            tv2PBCoreMapper.setRejectLog(rejectLog);
+        }
+        try {
+            tv2PBCoreMapper.mapCsvDataToPBCoreFiles(csvFile, outputSink);
+        } finally {
+            if (rejectLog != null) {
+                rejectLog.close();
+            }
         }
-        outputdir.mkdirs();
-        new Tv2PBCoreMapper().mapCsvDataToPBCoreFiles(new File(args[0]), outputdir);
     }
 }
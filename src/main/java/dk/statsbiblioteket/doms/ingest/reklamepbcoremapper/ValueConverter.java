@@ -0,0 +1,342 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Convert values read by the mappers to the text of PBCore elements.
+ *
+ * The converter is immutable and safe to share between threads. Conversions work directly on characters, without
+ * date formats, regular expressions or intermediate strings, but give the same results as the formats they replace:
+ * dates are written as the {@link java.text.SimpleDateFormat} pattern yyyy-MM-ddZ in the time zone the converter was
+ * created in, durations as HH:mm:ss, and file locations are URL encoded as by {@link java.net.URLEncoder}, with
+ * spaces and plus signs encoded as %20.
+ */
+public final class ValueConverter {
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final String MPG_SUFFIX = ".mpg";
+    private static final String XML_SUFFIX = ".xml";
+
+    private final TimeZone timeZone;
+    /** Two digit years are read as the years in the 100 years starting after this date, given as yyyyMMdd. */
+    private final int twoDigitYearStart;
+    private final int twoDigitYearStartCentury;
+
+    /**
+     * Initialise a converter writing dates in the default time zone, and reading two digit years as the years from 80
+     * years ago to 20 years ahead.
+     */
+    public ValueConverter() {
+        this(TimeZone.getDefault());
+    }
+
+    /**
+     * Initialise a converter writing dates in the given time zone, and reading two digit years as the years from 80
+     * years ago to 20 years ahead.
+     *
+     * @param timeZone The time zone of dates.
+     */
+    public ValueConverter(TimeZone timeZone) {
+        this.timeZone = (TimeZone) timeZone.clone();
+        Calendar calendar = new GregorianCalendar(timeZone);
+        calendar.add(Calendar.YEAR, -80);
+        int year = calendar.get(Calendar.YEAR);
+        twoDigitYearStart = year * 10000 + (calendar.get(Calendar.MONTH) + 1) * 100
+                + calendar.get(Calendar.DAY_OF_MONTH);
+        twoDigitYearStartCentury = year / 100 * 100;
+    }
+
+    /**
+     * Convert a date given as a number in the form yyMMdd, where leading zeros may be left out, to a date with time
+     * zone offset.
+     *
+     * @param value The date, such as 990111.
+     * @return The date, such as 1999-01-11+0100.
+     * @throws NumberFormatException If the value is not a number.
+     * @throws IllegalArgumentException If the value is not a valid date.
+     */
+    public String convertShortDate(String value) {
+        int number = Integer.parseInt(value);
+        if (number < 0 || number > 999999) {
+            throw new IllegalArgumentException("Not a date in the form yyMMdd: " + value);
+        }
+        int year = twoDigitYearStartCentury + number / 10000;
+        int month = number / 100 % 100;
+        int day = number % 100;
+        // Midnight of the start date is before the start, which is the time of day the converter was created
+        if (year * 10000 + month * 100 + day <= twoDigitYearStart) {
+            year += 100;
+        }
+        checkDate(year, month, day, value);
+        long utcMidnight = daysFromCivil(year, month, day) * MILLIS_PER_DAY;
+        StringBuilder result = new StringBuilder(15);
+        appendDate(result, year, month, day);
+        appendOffset(result, timeZone.getOffset(utcMidnight - timeZone.getRawOffset()));
+        return result.toString();
+    }
+
+    /**
+     * Normalise a month given in the form yyyy-MM.
+     *
+     * @param value The month, such as 1995-1.
+     * @return The month, such as 1995-01.
+     * @throws IllegalArgumentException If the value is not a valid month.
+     */
+    public String convertMonth(String value) {
+        int separator = value.indexOf('-');
+        if (separator <= 0) {
+            throw new IllegalArgumentException("Not a month in the form yyyy-MM: " + value);
+        }
+        int year = parseDigits(value, 0, separator);
+        int month = parseDigits(value, separator + 1, value.length());
+        if (year < 0 || month < 1 || month > 12) {
+            throw new IllegalArgumentException("Not a month in the form yyyy-MM: " + value);
+        }
+        StringBuilder result = new StringBuilder(7);
+        appendPadded(result, year, 4);
+        result.append('-');
+        appendPadded(result, month, 2);
+        return result.toString();
+    }
+
+    /**
+     * Convert a date to a date with time zone offset.
+     *
+     * @param date The date.
+     * @return The date in the time zone of the converter, such as 1961-02-12+0100.
+     */
+    public String convertDate(Date date) {
+        long millis = date.getTime();
+        int offset = timeZone.getOffset(millis);
+        long days = floorDiv(millis + offset, MILLIS_PER_DAY);
+        // Civil date from days since 1970-01-01, in the proleptic Gregorian calendar
+        long z = days + 719468;
+        long era = floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+        int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+        StringBuilder result = new StringBuilder(15);
+        appendDate(result, year, month, day);
+        appendOffset(result, offset);
+        return result.toString();
+    }
+
+    /**
+     * Convert a duration to a time of day. Durations of a day or more wrap around.
+     *
+     * @param seconds The duration in seconds.
+     * @return The duration in the form HH:mm:ss.
+     */
+    public String convertDuration(long seconds) {
+        int secondOfDay = (int) (seconds - floorDiv(seconds, SECONDS_PER_DAY) * SECONDS_PER_DAY);
+        StringBuilder result = new StringBuilder(8);
+        appendPadded(result, secondOfDay / 3600, 2);
+        result.append(':');
+        appendPadded(result, secondOfDay / 60 % 60, 2);
+        result.append(':');
+        appendPadded(result, secondOfDay % 60, 2);
+        return result.toString();
+    }
+
+    /**
+     * Convert a Danish language name to an ISO 639-2 language code.
+     *
+     * @param value The language name.
+     * @return dan for Dansk, und for Ukendt, and mis for other languages.
+     */
+    public String convertLanguage(String value) {
+        if (value.equals("Dansk")) {
+            return "dan";
+        } else if (value.equals("Ukendt")) {
+            return "und";
+        } else {
+            // TODO add more languages, what to do with "Udenlandsk" and "Versioneret"
+            return "mis";
+        }
+    }
+
+    /**
+     * Prefix a value with the key of a PBCore extension.
+     *
+     * @param key The key, such as censorcard.
+     * @param value The value, or null.
+     * @return The extension, such as "censorcard: 1234", or null if the value is null.
+     */
+    public String convertExtension(String key, Object value) {
+        return value == null ? null : key + ": " + value;
+    }
+
+    /**
+     * URL encode the name of a file, with both spaces and plus signs encoded as %20.
+     *
+     * @param value The file name.
+     * @return The encoded file name.
+     */
+    public String convertFileLocation(String value) {
+        return encode(value);
+    }
+
+    /**
+     * Get the name of the PBCore file for a video file: its URL encoded name, as by
+     * {@link #convertFileLocation(String)}, with the suffix .mpg replaced by .xml.
+     *
+     * @param value The name of the video file.
+     * @return The name of the PBCore file.
+     */
+    public String convertFileName(String value) {
+        if (value.indexOf(MPG_SUFFIX) == -1) {
+            return encode(value);
+        }
+        StringBuilder fileName = new StringBuilder(value.length());
+        int start = 0;
+        int end;
+        while ((end = value.indexOf(MPG_SUFFIX, start)) != -1) {
+            fileName.append(value, start, end).append(XML_SUFFIX);
+            start = end + MPG_SUFFIX.length();
+        }
+        fileName.append(value, start, value.length());
+        return encode(fileName);
+    }
+
+    private static String encode(CharSequence value) {
+        int length = value.length();
+        StringBuilder result = null;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (isUnreserved(c)) {
+                if (result != null) {
+                    result.append(c);
+                }
+                continue;
+            }
+            if (result == null) {
+                result = new StringBuilder(length + 16);
+                result.append(value, 0, i);
+            }
+            if (c == ' ' || c == '+') {
+                result.append("%20");
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                appendUtf8(result, Character.toCodePoint(c, value.charAt(++i)));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // Unpaired surrogates are encoded as question marks, like the UTF-8 encoder does
+                appendUtf8(result, '?');
+            } else {
+                appendUtf8(result, c);
+            }
+        }
+        return result == null ? value.toString() : result.toString();
+    }
+
+    private static boolean isUnreserved(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '.' || c == '-' || c == '*' || c == '_';
+    }
+
+    private static void appendUtf8(StringBuilder result, int codePoint) {
+        if (codePoint < 0x80) {
+            appendEscaped(result, codePoint);
+        } else if (codePoint < 0x800) {
+            appendEscaped(result, 0xC0 | (codePoint >> 6));
+            appendEscaped(result, 0x80 | (codePoint & 0x3F));
+        } else if (codePoint < 0x10000) {
+            appendEscaped(result, 0xE0 | (codePoint >> 12));
+            appendEscaped(result, 0x80 | ((codePoint >> 6) & 0x3F));
+            appendEscaped(result, 0x80 | (codePoint & 0x3F));
+        } else {
+            appendEscaped(result, 0xF0 | (codePoint >> 18));
+            appendEscaped(result, 0x80 | ((codePoint >> 12) & 0x3F));
+            appendEscaped(result, 0x80 | ((codePoint >> 6) & 0x3F));
+            appendEscaped(result, 0x80 | (codePoint & 0x3F));
+        }
+    }
+
+    private static void appendEscaped(StringBuilder result, int b) {
+        result.append('%').append(HEX_DIGITS[b >> 4]).append(HEX_DIGITS[b & 0xF]);
+    }
+
+    private static void appendDate(StringBuilder result, int year, int month, int day) {
+        appendPadded(result, year, 4);
+        result.append('-');
+        appendPadded(result, month, 2);
+        result.append('-');
+        appendPadded(result, day, 2);
+    }
+
+    private static void appendOffset(StringBuilder result, int offsetMillis) {
+        int offsetMinutes = offsetMillis / 60000;
+        result.append(offsetMinutes < 0 ? '-' : '+');
+        offsetMinutes = Math.abs(offsetMinutes);
+        appendPadded(result, offsetMinutes / 60, 2);
+        appendPadded(result, offsetMinutes % 60, 2);
+    }
+
+    private static void appendPadded(StringBuilder result, int value, int width) {
+        for (int limit = 10, digits = 1; digits < width; limit *= 10, digits++) {
+            if (value < limit) {
+                result.append('0');
+            }
+        }
+        result.append(value);
+    }
+
+    private static int parseDigits(String value, int start, int end) {
+        if (start >= end || end - start > 9) {
+            return -1;
+        }
+        int number = 0;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            number = number * 10 + (c - '0');
+        }
+        return number;
+    }
+
+    private static void checkDate(int year, int month, int day, String value) {
+        if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+            throw new IllegalArgumentException("Not a valid date: " + value);
+        }
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    /**
+     * Get the number of days since 1970-01-01 of a date in the proleptic Gregorian calendar.
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long quotient = x / y;
+        return (x % y != 0 && ((x < 0) != (y < 0))) ? quotient - 1 : quotient;
+    }
+}
@@ -8,12 +8,28 @@ import org.w3c.dom.Document;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import static junit.framework.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Test file generations.
@@ -55,4 +71,309 @@ public class BiografPBCoreMapperTest {
             //TODO Test stuff
         }
     }
+
+    @Test
+    public void testMapSnapshotToPBCoreFiles() throws Exception {
+        File snapshotFile = new File("target/testoutput.snapshot");
+        try {
+            BiografSnapshotWriter snapshotWriter = new BiografSnapshotWriter(snapshotFile);
+            for (int adID = 1; adID <= 3; adID++) {
+                snapshotWriter.write(createRecord(adID));
+            }
+            snapshotWriter.close();
+
+            BiografSnapshotReader snapshotReader = new BiografSnapshotReader(snapshotFile);
+            for (int adID = 1; adID <= 3; adID++) {
+                BiografRecord expected = createRecord(adID);
+                BiografRecord record = snapshotReader.readRecord();
+                assertEquals(adID, record.getAdID());
+                for (int resultindex = 1; resultindex <= expected.getColumnCount(); resultindex++) {
+                    assertEquals(expected.getValue(resultindex), record.getValue(resultindex));
+                }
+                assertEquals(expected.getSubjectKeywords(), record.getSubjectKeywords());
+                assertEquals(expected.getLanguages(), record.getLanguages());
+                assertTrue(Arrays.equals(expected.getCreators().get(0), record.getCreators().get(0)));
+            }
+            assertEquals(null, snapshotReader.readRecord());
+            snapshotReader.close();
+
+            snapshotReader = new BiografSnapshotReader(snapshotFile);
+            BiografPBCoreMapper biografPBCoreMapper = new BiografPBCoreMapper();
+            biografPBCoreMapper.mapSnapshotToPBCoreFiles(snapshotReader, new DirectoryOutputSink(OUTPUTDIR));
+            snapshotReader.close();
+            assertEquals(0, biografPBCoreMapper.getMetrics().getFailures());
+            File[] generatedFiles = OUTPUTDIR.listFiles();
+            assertEquals(3, generatedFiles.length);
+            for (File file : generatedFiles) {
+                DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+            }
+
+            // A snapshot that was not completely written is not taken for all records
+            RandomAccessFile truncated = new RandomAccessFile(snapshotFile, "rw");
+            truncated.setLength(truncated.length() - 2);
+            truncated.close();
+            snapshotReader = new BiografSnapshotReader(snapshotFile);
+            try {
+                while (snapshotReader.readRecord() != null) {
+                    continue;
+                }
+                fail("Truncated snapshot read");
+            } catch (IOException e) {
+                // Expected
+            } finally {
+                snapshotReader.close();
+            }
+        } finally {
+            snapshotFile.delete();
+        }
+    }
+
+    @Test
+    public void testOutputIndexRange() throws Exception {
+        File snapshotFile = new File("target/testoutput.snapshot");
+        File indexFile = new File("target/testoutput.index");
+        indexFile.delete();
+        try {
+            int[] adIDs = {5, 15, 20, 100, 150, 1000};
+            BiografSnapshotWriter snapshotWriter = new BiografSnapshotWriter(snapshotFile);
+            for (int adID : adIDs) {
+                snapshotWriter.write(createRecord(adID));
+            }
+            snapshotWriter.close();
+
+            OutputIndex outputIndex = new OutputIndex(indexFile);
+            BiografPBCoreMapper biografPBCoreMapper = new BiografPBCoreMapper();
+            biografPBCoreMapper.setOutputIndex(outputIndex);
+            BiografSnapshotReader snapshotReader = new BiografSnapshotReader(snapshotFile);
+            biografPBCoreMapper.mapSnapshotToPBCoreFiles(snapshotReader, new DirectoryOutputSink(OUTPUTDIR));
+            snapshotReader.close();
+            outputIndex.save();
+
+            // AdIDs are ordered by value, not as strings
+            OutputIndexReader reader = new OutputIndexReader(indexFile);
+            assertEquals(adIDs.length, reader.size());
+            assertEquals(Arrays.asList("15"), identifiers(reader.getRange("10", "20")));
+            assertEquals(Arrays.asList("20", "100", "150"), identifiers(reader.getRange("20", "1000")));
+            assertEquals(Arrays.asList("5", "15", "20", "100", "150", "1000"), identifiers(reader.getEntries()));
+            assertEquals("film100.mpg", reader.get("100").getFormatLocation());
+        } finally {
+            snapshotFile.delete();
+            indexFile.delete();
+        }
+    }
+
+    @Test
+    public void testMapPages() throws Exception {
+        Connection connection = BiografTestDatabase.create("pages", 15);
+        try {
+            Map<String, byte[]> expected = export(new BiografPBCoreMapper(), connection);
+            assertEquals(15, expected.size());
+            // A last page that is full, and one that is not, with batches of child rows crossing the pages
+            for (int pageSize : new int[]{5, 7}) {
+                for (int threads : new int[]{1, 3}) {
+                    BiografPBCoreMapper biografPBCoreMapper = new BiografPBCoreMapper(4, threads);
+                    biografPBCoreMapper.setPageSize(pageSize);
+                    assertFiles(expected, export(biografPBCoreMapper, connection));
+                }
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testResumeAfterFailure() throws Exception {
+        Connection connection = BiografTestDatabase.create("resume", 30);
+        File checkpointFile = new File("target/testoutput.checkpoint");
+        try {
+            Map<String, byte[]> expected = export(new BiografPBCoreMapper(), connection);
+            for (int threads : new int[]{1, 3}) {
+                checkpointFile.delete();
+                // Reading the third page fails, once the first two pages are read
+                BiografPBCoreMapper biografPBCoreMapper = new BiografPBCoreMapper(4, threads);
+                biografPBCoreMapper.setPageSize(5);
+                biografPBCoreMapper.setResumeCheckpoint(new ExportCheckpoint(checkpointFile));
+                RecordingOutputSink outputSink = new RecordingOutputSink();
+                try {
+                    biografPBCoreMapper.mapSQLDataToPBCoreFiles(outputSink, failingConnection(connection, 3));
+                    fail("Export did not fail");
+                } catch (SQLException e) {
+                    // Expected
+                }
+                // The advertisements read before the failure are written and checkpointed
+                assertEquals(files(expected, 1, 10).keySet(), outputSink.files.keySet());
+                assertEquals(Integer.valueOf(10), new ExportCheckpoint(checkpointFile).getLastAdID());
+
+                // The resumed export starts after the checkpoint, and clears it when complete
+                biografPBCoreMapper = new BiografPBCoreMapper(4, threads);
+                biografPBCoreMapper.setPageSize(5);
+                biografPBCoreMapper.setResumeCheckpoint(new ExportCheckpoint(checkpointFile));
+                assertFiles(files(expected, 11, 30), export(biografPBCoreMapper, connection));
+                assertEquals(null, new ExportCheckpoint(checkpointFile).getLastAdID());
+            }
+        } finally {
+            checkpointFile.delete();
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testDelta() throws Exception {
+        Connection connection = BiografTestDatabase.create("delta", 20);
+        try {
+            Map<String, byte[]> expected = export(new BiografPBCoreMapper(), connection);
+            // The advertisements are modified a minute apart, in order of AdID
+            Timestamp modifiedSince = new Timestamp(1000000000000L + 10 * 60000L);
+            Statement statement = connection.createStatement();
+            statement.executeUpdate("UPDATE Advertisement SET fileName = NULL WHERE AdID = 15");
+            statement.close();
+            Map<String, byte[]> modified = files(expected, 11, 20);
+            modified.remove("reklamefilm_15.xml");
+
+            for (int pageSize : new int[]{0, 4}) {
+                BiografPBCoreMapper biografPBCoreMapper = new BiografPBCoreMapper(4, 2);
+                biografPBCoreMapper.setPageSize(pageSize);
+                biografPBCoreMapper.setModifiedSince(modifiedSince);
+                assertFiles(modified, export(biografPBCoreMapper, connection));
+                assertEquals(Arrays.asList(15), biografPBCoreMapper.findRetractedAdIDs(connection));
+                assertEquals(new Timestamp(1000000000000L + 20 * 60000L), biografPBCoreMapper.getLastModified());
+            }
+
+            // Of the given advertisements, only those modified are exported
+            BiografPBCoreMapper biografPBCoreMapper = new BiografPBCoreMapper(2, 1);
+            biografPBCoreMapper.setModifiedSince(modifiedSince);
+            biografPBCoreMapper.setAdIDs(new TreeSet<Integer>(Arrays.asList(3, 12, 13, 14, 15, 20)));
+            Map<String, byte[]> given = files(expected, 12, 14);
+            given.putAll(files(expected, 20, 20));
+            assertFiles(given, export(biografPBCoreMapper, connection));
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testParallelRanges() throws Exception {
+        Connection connection = BiografTestDatabase.create("ranges", 50);
+        ConnectionPool connectionPool = new ConnectionPool("jdbc:h2:mem:ranges", "sa", "", 3);
+        try {
+            // Leave some of the ranges empty
+            Statement statement = connection.createStatement();
+            statement.executeUpdate("DELETE FROM Advertisement WHERE AdID BETWEEN 20 AND 34");
+            statement.close();
+            Map<String, byte[]> expected = export(new BiografPBCoreMapper(), connection);
+            assertEquals(35, expected.size());
+            for (int pageSize : new int[]{0, 4}) {
+                for (int threads : new int[]{1, 2}) {
+                    BiografPBCoreMapper biografPBCoreMapper = new BiografPBCoreMapper(4, threads);
+                    biografPBCoreMapper.setPageSize(pageSize);
+                    RecordingOutputSink outputSink = new RecordingOutputSink();
+                    biografPBCoreMapper.mapSQLDataToPBCoreFiles(outputSink, connectionPool);
+                    assertEquals(0, biografPBCoreMapper.getMetrics().getFailures());
+                    assertFiles(expected, outputSink.getFiles());
+                }
+            }
+        } finally {
+            connectionPool.close();
+            connection.close();
+        }
+    }
+
+    /** Sink keeping the files in memory. */
+    private static class RecordingOutputSink implements OutputSink {
+        private final Map<String, byte[]> files = new TreeMap<String, byte[]>();
+        private int writes;
+
+        public synchronized void write(String name, byte[] content, String checksum) {
+            files.put(name, content);
+            writes++;
+        }
+
+        public boolean exists(String name) {
+            return false;
+        }
+
+        public void retain(String name) {
+        }
+
+        public void close() {
+        }
+
+        synchronized Map<String, byte[]> getFiles() {
+            assertEquals("Files written more than once", files.size(), writes);
+            return files;
+        }
+    }
+
+    private static Map<String, byte[]> export(BiografPBCoreMapper biografPBCoreMapper, Connection connection)
+            throws SQLException {
+        RecordingOutputSink outputSink = new RecordingOutputSink();
+        biografPBCoreMapper.mapSQLDataToPBCoreFiles(outputSink, connection);
+        assertEquals(0, biografPBCoreMapper.getMetrics().getFailures());
+        return outputSink.getFiles();
+    }
+
+    private static Map<String, byte[]> files(Map<String, byte[]> files, int fromAdID, int toAdID) {
+        Map<String, byte[]> range = new TreeMap<String, byte[]>();
+        for (int adID = fromAdID; adID <= toAdID; adID++) {
+            String name = "reklamefilm_" + adID + ".xml";
+            assertTrue(name, files.containsKey(name));
+            range.put(name, files.get(name));
+        }
+        return range;
+    }
+
+    private static void assertFiles(Map<String, byte[]> expected, Map<String, byte[]> files) {
+        assertEquals(expected.keySet(), files.keySet());
+        for (Map.Entry<String, byte[]> file : expected.entrySet()) {
+            assertTrue(file.getKey(), Arrays.equals(file.getValue(), files.get(file.getKey())));
+        }
+    }
+
+    /**
+     * Wrap a connection, so preparing an advertisement query fails from the given query on, as if the connection
+     * dropped.
+     */
+    private static Connection failingConnection(final Connection connection, final int failingQuery) {
+        return (Connection) Proxy.newProxyInstance(
+                BiografPBCoreMapperTest.class.getClassLoader(), new Class<?>[]{Connection.class},
+                new InvocationHandler() {
+                    private int queries;
+
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("prepareStatement")
+                                && ((String) args[0]).contains("FROM Advertisement ad") && ++queries >= failingQuery) {
+                            throw new SQLException("Connection dropped");
+                        }
+                        try {
+                            return method.invoke(connection, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+    private static List<String> identifiers(List<OutputIndex.Entry> entries) {
+        List<String> identifiers = new ArrayList<String>();
+        for (OutputIndex.Entry entry : entries) {
+            identifiers.add(entry.getIdentifier());
+        }
+        return identifiers;
+    }
+
+    private static BiografRecord createRecord(int adID) {
+        BiografRecord record = new BiografRecord(adID, 20);
+        record.setValue(1, adID);
+        record.setValue(2, "Titel æøå " + adID);
+        record.setValue(9, java.sql.Date.valueOf("1961-02-1" + adID % 10));
+        record.setValue(10, 30 + adID);
+        record.setValue(13, -adID);
+        record.setValue(19, "film" + adID + ".mpg");
+        record.setValue(20, "Danmark");
+        record.getSubjectKeywords().add("keyword");
+        record.getSubjectKeywords().add("keyword" + adID);
+        record.getLanguages().add("dan");
+        record.getCreators().add(new String[]{"Instruktør", "Instruktør " + adID});
+        return record;
+    }
 }
@@ -0,0 +1,176 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Random;
+
+/**
+ * An in-memory H2 database replicating the part of the Biograf schema read by {@link BiografPBCoreMapper}, filled
+ * with generated advertisements. It is used by the tests, and by the benchmarks, which are compiled with the tests.
+ *
+ * The database is held in the heap, so large databases need a correspondingly large maximum heap size.
+ *
+ * The advertisement query uses the Sybase function charindex, which H2 also provides, with the same arguments.
+ */
+final class BiografTestDatabase {
+    private static final String[] CREATOR_ROLES = {"Instruktør", "Tegner", "Bureau", "Producent"};
+    private static final String[] CONTRIBUTOR_ROLES = {"Oversætter", "Medvirkende", "Tekniske arbejder"};
+    private static final String[] LANGUAGES = {"dan", "eng", "swe", "nor", "ger"};
+    private static final int SUBJECTS = 50;
+    private static final int DECADES = 10;
+    private static final int PEOPLE = 500;
+    /** Number of advertisements inserted per batch. */
+    private static final int INSERT_BATCH_SIZE = 1000;
+
+    private static final String[] SCHEMA = {
+            "CREATE TABLE Advertisement (AdID INT PRIMARY KEY, title VARCHAR(255), titleAlternative VARCHAR(255),"
+                    + " subject VARCHAR(255), description VARCHAR(2000), descriptionExt VARCHAR(2000),"
+                    + " dateCensorship VARCHAR(50), datePremiere DATE, formatExtentDigital INT,"
+                    + " formatExtentAnalogue VARCHAR(50), identifierCensorshipCard VARCHAR(50),"
+                    + " identifierCensorshipCardNo INT, registrant VARCHAR(50), registerDate TIMESTAMP,"
+                    + " lastModifiedBy VARCHAR(50), lastModified TIMESTAMP, recordIDcensor VARCHAR(50),"
+                    + " fileName VARCHAR(255), covSpatial VARCHAR(255))",
+            "CREATE TABLE SubjectKeyword (subjectKeywordID INT PRIMARY KEY, word VARCHAR(255))",
+            "CREATE TABLE AdvSubjectKeyword (AdID INT, subjectKeywordID INT)",
+            "CREATE TABLE SubjectReklamefilm (subjectReklameID INT PRIMARY KEY, word VARCHAR(255), parentID INT)",
+            "CREATE TABLE AdvSubjectReklamefilm (AdID INT, subjectReklameID INT)",
+            "CREATE TABLE Decade (decadeID INT PRIMARY KEY, decade VARCHAR(50))",
+            "CREATE TABLE AdvDecade (AdID INT, decadeID INT)",
+            "CREATE TABLE Language (languageID INT PRIMARY KEY, abbreviation VARCHAR(10))",
+            "CREATE TABLE AdvLanguage (AdID INT, languageID INT)",
+            "CREATE TABLE CreatorRole (creatorRoleID INT PRIMARY KEY, description VARCHAR(255))",
+            "CREATE TABLE Creator (creatorID INT PRIMARY KEY, name VARCHAR(255), creatorRoleID INT)",
+            "CREATE TABLE AdvCreator (AdID INT, creatorID INT)",
+            "CREATE TABLE ContributorRole (contributorRoleID INT PRIMARY KEY, description VARCHAR(255))",
+            "CREATE TABLE Contributor (contributorID INT PRIMARY KEY, name VARCHAR(255), contributorRoleID INT)",
+            "CREATE TABLE AdvContributor (AdID INT, contributorID INT)",
+            "CREATE INDEX AdvSubjectKeywordAdID ON AdvSubjectKeyword (AdID)",
+            "CREATE INDEX AdvSubjectReklamefilmAdID ON AdvSubjectReklamefilm (AdID)",
+            "CREATE INDEX AdvDecadeAdID ON AdvDecade (AdID)",
+            "CREATE INDEX AdvLanguageAdID ON AdvLanguage (AdID)",
+            "CREATE INDEX AdvCreatorAdID ON AdvCreator (AdID)",
+            "CREATE INDEX AdvContributorAdID ON AdvContributor (AdID)"};
+
+    private BiografTestDatabase() {
+    }
+
+    /**
+     * Create a database with generated advertisements. The data only depends on the number of advertisements. The
+     * database lives as long as the returned connection is open.
+     *
+     * @param name Name of the in-memory database.
+     * @param advertisements Number of advertisements to generate.
+     * @return An open connection to the database.
+     * @throws SQLException On trouble creating the database.
+     */
+    static Connection create(String name, int advertisements) throws SQLException {
+        Connection connection = DriverManager.getConnection("jdbc:h2:mem:" + name, "sa", "");
+        Statement statement = connection.createStatement();
+        for (String sql : SCHEMA) {
+            statement.execute(sql);
+        }
+        statement.close();
+
+        for (int i = 1; i <= SUBJECTS; i++) {
+            insert(connection, "INSERT INTO SubjectKeyword VALUES (?, ?)", i, "Nøgleord " + i);
+            // The first ten subjects are the parents of the others, and their own parents
+            insert(connection, "INSERT INTO SubjectReklamefilm VALUES (?, ?, ?)", i, "Emne " + i,
+                   i <= 10 ? i : (i % 10) + 1);
+        }
+        for (int i = 1; i <= DECADES; i++) {
+            insert(connection, "INSERT INTO Decade VALUES (?, ?)", i, (1900 + i * 10) + "'erne");
+        }
+        for (int i = 0; i < LANGUAGES.length; i++) {
+            insert(connection, "INSERT INTO Language VALUES (?, ?)", i + 1, LANGUAGES[i]);
+        }
+        for (int i = 0; i < CREATOR_ROLES.length; i++) {
+            insert(connection, "INSERT INTO CreatorRole VALUES (?, ?)", i + 1, CREATOR_ROLES[i]);
+        }
+        for (int i = 0; i < CONTRIBUTOR_ROLES.length; i++) {
+            insert(connection, "INSERT INTO ContributorRole VALUES (?, ?)", i + 1, CONTRIBUTOR_ROLES[i]);
+        }
+        for (int i = 1; i <= PEOPLE; i++) {
+            insert(connection, "INSERT INTO Creator VALUES (?, ?, ?)", i, "Ophavsmand " + i,
+                   i % CREATOR_ROLES.length + 1);
+            insert(connection, "INSERT INTO Contributor VALUES (?, ?, ?)", i, "Medvirkende " + i,
+                   i % CONTRIBUTOR_ROLES.length + 1);
+        }
+
+        // Advertisements are inserted in batches, so databases of a million advertisements are created in minutes
+        connection.setAutoCommit(false);
+        PreparedStatement advertisement = connection.prepareStatement(
+                "INSERT INTO Advertisement VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        PreparedStatement subjectKeyword = connection.prepareStatement("INSERT INTO AdvSubjectKeyword VALUES (?, ?)");
+        PreparedStatement subjectReklamefilm = connection.prepareStatement(
+                "INSERT INTO AdvSubjectReklamefilm VALUES (?, ?)");
+        PreparedStatement decade = connection.prepareStatement("INSERT INTO AdvDecade VALUES (?, ?)");
+        PreparedStatement language = connection.prepareStatement("INSERT INTO AdvLanguage VALUES (?, ?)");
+        PreparedStatement creator = connection.prepareStatement("INSERT INTO AdvCreator VALUES (?, ?)");
+        PreparedStatement contributor = connection.prepareStatement("INSERT INTO AdvContributor VALUES (?, ?)");
+        PreparedStatement[] statements = {advertisement, subjectKeyword, subjectReklamefilm, decade, language,
+                                          creator, contributor};
+        try {
+            Random random = new Random(advertisements);
+            for (int adID = 1; adID <= advertisements; adID++) {
+                // Titles with characters escaped in XML, and quotes and commas
+                String title = adID % 100 == 0 ? "Reklamefilm \"" + adID + "\", <Sæbe & Søn>" : "Reklamefilm " + adID;
+                addBatch(advertisement, adID, title, random.nextBoolean() ? "Alternativ titel " + adID : null,
+                         "Produkt " + random.nextInt(1000), "Censurkort " + adID + "$Beskrivelse af filmen " + adID,
+                         random.nextBoolean() ? "Udvidet beskrivelse " + adID : null, "19" + (20 + random.nextInt(80)),
+                         new Date(-1000000000000L + random.nextInt(1000000) * 1000000L), 10 + random.nextInt(170),
+                         random.nextBoolean() ? Integer.toString(random.nextInt(500)) : null, "Kort " + adID,
+                         random.nextInt(100000), "registrant", new Timestamp(1000000000000L), "registrant",
+                         new Timestamp(1000000000000L + adID * 60000L), "rc" + adID,
+                         "reklamefilm_" + adID + ".mpg", random.nextBoolean() ? "Danmark" : null);
+                addBatch(subjectKeyword, adID, random.nextInt(SUBJECTS) + 1);
+                addBatch(subjectReklamefilm, adID, random.nextInt(SUBJECTS - 10) + 11);
+                addBatch(decade, adID, random.nextInt(DECADES) + 1);
+                for (int i = random.nextInt(3); i > 0; i--) {
+                    addBatch(language, adID, random.nextInt(LANGUAGES.length) + 1);
+                }
+                for (int i = random.nextInt(5); i > 0; i--) {
+                    addBatch(creator, adID, random.nextInt(PEOPLE) + 1);
+                }
+                for (int i = random.nextInt(4); i > 0; i--) {
+                    addBatch(contributor, adID, random.nextInt(PEOPLE) + 1);
+                }
+                if (adID % INSERT_BATCH_SIZE == 0 || adID == advertisements) {
+                    for (PreparedStatement insert : statements) {
+                        insert.executeBatch();
+                    }
+                    connection.commit();
+                }
+            }
+        } finally {
+            for (PreparedStatement insert : statements) {
+                insert.close();
+            }
+        }
+        connection.setAutoCommit(true);
+        return connection;
+    }
+
+    private static void insert(Connection connection, String sql, Object... values) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(sql);
+        try {
+            for (int i = 0; i < values.length; i++) {
+                statement.setObject(i + 1, values[i]);
+            }
+            statement.executeUpdate();
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static void addBatch(PreparedStatement statement, Object... values) throws SQLException {
+        for (int i = 0; i < values.length; i++) {
+            statement.setObject(i + 1, values[i]);
+        }
+        statement.addBatch();
+    }
+}
@@ -0,0 +1,98 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Test CSV parsing.
+ */
+public class CsvParserTest {
+    @Test
+    public void testReadCsvData() throws Exception {
+        List<List<String>> rows = CsvParser.readCsvData("a,b,c\n\"d,e\",f,\"g\nh\"\ni,\"28\"\" TV\",\"\"\n");
+        assertEquals(3, rows.size());
+        assertEquals(Arrays.asList("a", "b", "c"), rows.get(0));
+        assertEquals(Arrays.asList("d,e", "f", "g\nh"), rows.get(1));
+        // Two quotes in a row inside a quoted cell are dropped
+        assertEquals(Arrays.asList("i", "28 TV", ""), rows.get(2));
+    }
+
+    @Test
+    public void testReadRowWithoutTrailingNewline() throws Exception {
+        CsvParser csvParser = new CsvParser(new StringReader("a,b\nc,d"));
+        assertEquals(Arrays.asList("a", "b"), csvParser.readRow());
+        assertEquals(Arrays.asList("c", "d"), csvParser.readRow());
+        assertNull(csvParser.readRow());
+    }
+
+    @Test
+    public void testReadRowAcrossBufferBoundaries() throws Exception {
+        StringBuilder cell = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            cell.append(i % 10 == 0 ? "\"\"" : "x");
+        }
+        CsvParser csvParser = new CsvParser(new StringReader("\"" + cell + "\",y\n"));
+        List<String> row = csvParser.readRow();
+        assertEquals(2, row.size());
+        assertEquals(cell.toString().replace("\"\"", ""), row.get(0));
+        assertEquals("y", row.get(1));
+        assertNull(csvParser.readRow());
+    }
+
+    @Test
+    public void testGetLineNumber() throws Exception {
+        CsvParser csvParser = new CsvParser(new StringReader("a,b\n\"c\nd\",e\nf,g\n"));
+        assertEquals(0, csvParser.getLineNumber());
+        csvParser.readRow();
+        assertEquals(1, csvParser.getLineNumber());
+        csvParser.readRow();
+        assertEquals(2, csvParser.getLineNumber());
+        assertEquals(Arrays.asList("f", "g"), csvParser.readRow());
+        assertEquals(4, csvParser.getLineNumber());
+    }
+
+    @Test
+    public void testMappedCsvParser() throws Exception {
+        File csvFile = File.createTempFile("mapped", ".csv");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(csvFile), "UTF-8");
+            try {
+                for (int i = 0; i < 200; i++) {
+                    writer.write("a" + i + ",\"b\n\"\"c,\"\"\n\",\"\"\"\",æøå " + i + "\n\n");
+                }
+                writer.write("\"last\nrow\",x");
+            } finally {
+                writer.close();
+            }
+            for (int chunkSize : new int[]{1, 7, 64, 1024 * 1024}) {
+                CsvParser csvParser = new CsvParser(new InputStreamReader(new FileInputStream(csvFile), "UTF-8"));
+                MappedCsvParser mappedCsvParser = new MappedCsvParser(csvFile, 3, chunkSize);
+                try {
+                    List<String> row;
+                    while ((row = csvParser.readRow()) != null) {
+                        assertEquals(row, mappedCsvParser.readRow());
+                        assertEquals(csvParser.getLineNumber(), mappedCsvParser.getLineNumber());
+                    }
+                    assertNull(mappedCsvParser.readRow());
+                } finally {
+                    csvParser.close();
+                    mappedCsvParser.close();
+                }
+            }
+        } finally {
+            csvFile.delete();
+        }
+    }
+}
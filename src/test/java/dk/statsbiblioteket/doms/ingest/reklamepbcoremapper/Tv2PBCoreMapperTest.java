@@ -6,7 +6,23 @@ import org.junit.Test;
 import org.w3c.dom.Document;
 
 import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipInputStream;
 
 import static junit.framework.Assert.assertEquals;
 
@@ -24,10 +40,16 @@ public class Tv2PBCoreMapperTest {
 
     @After
     public void tearDown() {
-        for (File file : OUTPUTDIR.listFiles()) {
-            file.delete();
+        delete(OUTPUTDIR);
+    }
+
+    private static void delete(File file) {
+        if (file.isDirectory()) {
+            for (File child : file.listFiles()) {
+                delete(child);
+            }
         }
-        OUTPUTDIR.delete();
+        file.delete();
     }
 
     @Test
@@ -68,4 +90,323 @@ public class Tv2PBCoreMapperTest {
             //TODO Test stuff
         }
     }
+
+    @Test
+    public void testMapCsvDataToPBCoreFilesInParallel() throws Exception {
+        new Tv2PBCoreMapper(4).mapCsvDataToPBCoreFiles(new File(getClass().getClassLoader().getResource("199901_1.meta.utf8.csv").getPath()),
+                                                       OUTPUTDIR);
+        File[] generatedFiles = OUTPUTDIR.listFiles();
+        assertEquals(226, generatedFiles.length);
+        for (File file : generatedFiles) {
+            Document d = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+            assertEquals(42, d.getElementsByTagName("*").getLength());
+        }
+    }
+
+    @Test
+    public void testMapCsvDataToPBCoreFilesStreaming() throws Exception {
+        Tv2PBCoreMapper tv2PBCoreMapper = new Tv2PBCoreMapper();
+        tv2PBCoreMapper.setOutputEngine(OutputEngine.STREAMING);
+        tv2PBCoreMapper.mapCsvDataToPBCoreFiles(new File(getClass().getClassLoader().getResource("199901_1.meta.utf8.csv").getPath()),
+                                                OUTPUTDIR);
+        File[] generatedFiles = OUTPUTDIR.listFiles();
+        assertEquals(226, generatedFiles.length);
+        for (File file : generatedFiles) {
+            Document d = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+            assertEquals(42, d.getElementsByTagName("*").getLength());
+        }
+    }
+
+    @Test
+    public void testStreamingUnpairedSurrogates() throws Exception {
+        PBCoreTemplate template = PBCoreTemplate.getTemplate("pbcoretv2template.xml");
+        NodeLocator title = template.compileLocator("/p:PBCoreDescriptionDocument/p:pbcoreTitle[1]/p:title");
+        PBCoreDocument pbcoreDocument = template.createDocument(OutputEngine.STREAMING);
+        pbcoreDocument.setText(title, "a\uD800b\uDC00c\uD83D\uDE00");
+        ByteArrayOutputStream pbcore = new ByteArrayOutputStream();
+        pbcoreDocument.writeTo(pbcore);
+        // Strict decoding fails on malformed UTF-8
+        Charset.forName("UTF-8").newDecoder().decode(ByteBuffer.wrap(pbcore.toByteArray()));
+        Document d = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(
+                new ByteArrayInputStream(pbcore.toByteArray()));
+        assertEquals("a?b?c\uD83D\uDE00", d.getElementsByTagName("title").item(0).getTextContent());
+    }
+
+    @Test
+    public void testMapCsvDataToPBCoreFilesWithManifest() throws Exception {
+        File csvFile = new File(getClass().getClassLoader().getResource("199901_1.meta.utf8.csv").getPath());
+        File manifestFile = new File("target/testoutput.manifest");
+        manifestFile.delete();
+        try {
+            OutputManifest manifest = new OutputManifest(manifestFile, new DirectoryOutputSink(OUTPUTDIR));
+            Tv2PBCoreMapper tv2PBCoreMapper = new Tv2PBCoreMapper();
+            tv2PBCoreMapper.mapCsvDataToPBCoreFiles(csvFile, manifest);
+            manifest.removeUnseen();
+            manifest.save();
+            assertEquals(226, OUTPUTDIR.listFiles().length);
+            assertEquals(226, manifest.getChangeCount());
+
+            // Mapping the same data again only writes the file that has been deleted, but reports no changes
+            File removedFile = OUTPUTDIR.listFiles()[0];
+            removedFile.delete();
+            manifest = new OutputManifest(manifestFile, new DirectoryOutputSink(OUTPUTDIR));
+            tv2PBCoreMapper.mapCsvDataToPBCoreFiles(csvFile, manifest);
+            manifest.removeUnseen();
+            assertEquals(0, manifest.getChangeCount());
+            assertEquals(226, OUTPUTDIR.listFiles().length);
+        } finally {
+            manifestFile.delete();
+        }
+    }
+
+    @Test
+    public void testMapCsvDataToArchive() throws Exception {
+        File csvFile = new File(getClass().getClassLoader().getResource("199901_1.meta.utf8.csv").getPath());
+        File archiveFile = new File(OUTPUTDIR, "pbcore.zip");
+        ArchiveOutputSink outputSink = ArchiveOutputSink.create(archiveFile);
+        try {
+            new Tv2PBCoreMapper().mapCsvDataToPBCoreFiles(csvFile, outputSink);
+        } finally {
+            outputSink.close();
+        }
+        ZipInputStream zipInputStream = new ZipInputStream(new FileInputStream(archiveFile));
+        int entries = 0;
+        try {
+            while (zipInputStream.getNextEntry() != null) {
+                Document d = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(
+                        new ByteArrayInputStream(readEntry(zipInputStream)));
+                assertEquals(42, d.getElementsByTagName("*").getLength());
+                entries++;
+            }
+        } finally {
+            zipInputStream.close();
+        }
+        assertEquals(226, entries);
+    }
+
+    @Test
+    public void testRejectAndRerun() throws Exception {
+        File csvFile = new File("target/testrejects.csv");
+        File rejectsFile = new File("target/testrejects.tsv");
+        try {
+            // The durations on line 2 and 5 are malformed, and the row on line 3 spans two lines
+            writeCsv(csvFile, "1995-01,A,B,C,30,D,,E,F,G,Dansk,test_0001\n"
+                    + "1995-01,A,B,C,tredive,D,,E,F,G,Dansk,test_0002\n"
+                    + "1995-01,A,B,C,30,\"D\nD\",,E,F,G,Dansk,test_0003\n"
+                    + "1995-01,A,B,C,,D,,E,F,G,Dansk,test_0004\n");
+            Tv2PBCoreMapper tv2PBCoreMapper = new Tv2PBCoreMapper();
+            RejectLog rejectLog = new RejectLog(rejectsFile);
+            tv2PBCoreMapper.setRejectLog(rejectLog);
+            tv2PBCoreMapper.mapCsvDataToPBCoreFiles(csvFile, OUTPUTDIR);
+            rejectLog.close();
+            assertEquals(2, rejectLog.getRejectCount());
+            assertEquals(2, OUTPUTDIR.listFiles().length);
+            Set<Integer> lineNumbers = RejectLog.readIdentifiers(rejectsFile);
+            assertEquals(new TreeSet<Integer>(Arrays.asList(2, 5)), lineNumbers);
+
+            // Once the data is fixed, a re-run only maps the rejected rows
+            writeCsv(csvFile, "1995-01,A,B,C,30,D,,E,F,G,Dansk,test_0001\n"
+                    + "1995-01,A,B,C,30,D,,E,F,G,Dansk,test_0002\n"
+                    + "1995-01,A,B,C,30,\"D\nD\",,E,F,G,Dansk,test_0003\n"
+                    + "1995-01,A,B,C,30,D,,E,F,G,Dansk,test_0004\n");
+            for (File file : OUTPUTDIR.listFiles()) {
+                file.delete();
+            }
+            tv2PBCoreMapper.setLineNumbers(lineNumbers);
+            rejectLog = new RejectLog(rejectsFile);
+            tv2PBCoreMapper.setRejectLog(rejectLog);
+            tv2PBCoreMapper.mapCsvDataToPBCoreFiles(csvFile, OUTPUTDIR);
+            rejectLog.close();
+            assertEquals(0, rejectLog.getRejectCount());
+            assertEquals(2, OUTPUTDIR.listFiles().length);
+            assertEquals(true, new File(OUTPUTDIR, "test_0002.xml").exists());
+            assertEquals(true, new File(OUTPUTDIR, "test_0004.xml").exists());
+        } finally {
+            csvFile.delete();
+            rejectsFile.delete();
+        }
+    }
+
+    @Test
+    public void testValidate() throws Exception {
+        File csvFile = new File(getClass().getClassLoader().getResource("199901_1.meta.utf8.csv").getPath());
+        File schemaFile = new File("target/testschema.xsd");
+        try {
+            // A schema accepting any PBCore document
+            writeSchema(schemaFile, "unbounded");
+            Tv2PBCoreMapper tv2PBCoreMapper = new Tv2PBCoreMapper(4);
+            tv2PBCoreMapper.setValidator(new PBCoreValidator(schemaFile));
+            tv2PBCoreMapper.mapCsvDataToPBCoreFiles(csvFile, OUTPUTDIR);
+            assertEquals(226, OUTPUTDIR.listFiles().length);
+            assertEquals(0, tv2PBCoreMapper.getMetrics().getFailures());
+
+            // A schema only accepting PBCore documents with at most three elements
+            for (File file : OUTPUTDIR.listFiles()) {
+                file.delete();
+            }
+            writeSchema(schemaFile, "3");
+            tv2PBCoreMapper = new Tv2PBCoreMapper(4);
+            tv2PBCoreMapper.setValidator(new PBCoreValidator(schemaFile));
+            tv2PBCoreMapper.mapCsvDataToPBCoreFiles(csvFile, OUTPUTDIR);
+            assertEquals(0, OUTPUTDIR.listFiles().length);
+            assertEquals(226, tv2PBCoreMapper.getMetrics().getFailures());
+        } finally {
+            schemaFile.delete();
+        }
+    }
+
+    @Test
+    public void testOutputIndex() throws Exception {
+        File csvFile = new File(getClass().getClassLoader().getResource("199901_1.meta.utf8.csv").getPath());
+        File indexFile = new File("target/testoutput.index");
+        indexFile.delete();
+        try {
+            OutputIndex outputIndex = new OutputIndex(indexFile);
+            Tv2PBCoreMapper tv2PBCoreMapper = new Tv2PBCoreMapper();
+            tv2PBCoreMapper.setOutputIndex(outputIndex);
+            tv2PBCoreMapper.mapCsvDataToPBCoreFiles(csvFile, OUTPUTDIR);
+            outputIndex.save();
+            assertEquals(0, outputIndex.getDuplicateCount());
+
+            OutputIndexReader reader = new OutputIndexReader(indexFile);
+            assertEquals(226, reader.size());
+            OutputIndex.Entry entry = reader.get("tv2rekl199901_0002");
+            assertEquals("tv2rekl199901_0002.xml", entry.getName());
+            assertEquals("tv2rekl199901_0002.mpg", entry.getFormatLocation());
+            assertEquals(new File(OUTPUTDIR, entry.getName()).length(), entry.getSize());
+            assertEquals(null, reader.get("tv2rekl199901_0227"));
+            List<OutputIndex.Entry> range = reader.getRange("tv2rekl199901_0010", "tv2rekl199901_0020");
+            assertEquals(10, range.size());
+            assertEquals("tv2rekl199901_0010", range.get(0).getIdentifier());
+
+            // Mapping the same rows again in the next run is not a duplicate, but mapping them twice in a run is
+            outputIndex = new OutputIndex(indexFile);
+            tv2PBCoreMapper.setOutputIndex(outputIndex);
+            tv2PBCoreMapper.mapCsvDataToPBCoreFiles(csvFile, OUTPUTDIR);
+            assertEquals(0, outputIndex.getDuplicateCount());
+            tv2PBCoreMapper.mapCsvDataToPBCoreFiles(csvFile, OUTPUTDIR);
+            assertEquals(226, outputIndex.getDuplicateCount());
+        } finally {
+            indexFile.delete();
+        }
+    }
+
+    @Test
+    public void testOutputLayout() throws Exception {
+        File csvFile = new File(getClass().getClassLoader().getResource("199901_1.meta.utf8.csv").getPath());
+        Tv2PBCoreMapper tv2PBCoreMapper = new Tv2PBCoreMapper();
+        tv2PBCoreMapper.setOutputLayout(OutputLayout.DATE);
+        tv2PBCoreMapper.mapCsvDataToPBCoreFiles(csvFile, OUTPUTDIR);
+        assertEquals(1, OUTPUTDIR.listFiles().length);
+        // No temporary files are left behind
+        assertEquals(226, new File(OUTPUTDIR, "1999/01").listFiles().length);
+        assertEquals("undated/name.xml", OutputLayout.DATE.getPath("name.xml", null));
+
+        delete(OUTPUTDIR);
+        OUTPUTDIR.mkdirs();
+        File indexFile = new File("target/testoutput.index");
+        indexFile.delete();
+        OutputIndex outputIndex = new OutputIndex(indexFile);
+        tv2PBCoreMapper.setOutputLayout(OutputLayout.HASH);
+        tv2PBCoreMapper.setOutputIndex(outputIndex);
+        tv2PBCoreMapper.mapCsvDataToPBCoreFiles(csvFile, OUTPUTDIR);
+        outputIndex.save();
+        int files = 0;
+        for (File directory : OUTPUTDIR.listFiles()) {
+            assertEquals(2, directory.getName().length());
+            for (File file : directory.listFiles()) {
+                assertEquals(directory.getName() + "/" + file.getName(),
+                             OutputLayout.HASH.getPath(file.getName(), null));
+                files++;
+            }
+        }
+        assertEquals(226, files);
+        String path = OutputLayout.HASH.getPath("tv2rekl199901_0002.xml", null);
+        assertEquals(path, new OutputIndexReader(indexFile).get("tv2rekl199901_0002").getName());
+        assertEquals(true, new File(OUTPUTDIR, path).isFile());
+        indexFile.delete();
+    }
+
+    @Test
+    public void testInboxWatcher() throws Exception {
+        File inbox = new File("target/testinbox");
+        File rejectsDirectory = new File("target/testinbox-rejects");
+        inbox.mkdirs();
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            Tv2PBCoreMapper tv2PBCoreMapper = new Tv2PBCoreMapper(2);
+            tv2PBCoreMapper.setExecutorService(executorService);
+            Tv2InboxWatcher watcher = new Tv2InboxWatcher(inbox, tv2PBCoreMapper, new DirectoryOutputSink(OUTPUTDIR));
+            watcher.setRejectsDirectory(rejectsDirectory);
+            // The duration on line 2 is malformed
+            writeCsv(new File(inbox, "delivery1.csv"), "1995-01,A,B,C,30,D,,E,F,G,Dansk,test_0001\n"
+                    + "1995-01,A,B,C,tredive,D,,E,F,G,Dansk,test_0002\n");
+            writeCsv(new File(inbox, ".delivery2.csv"), "1995-01,A,B,C,30,D,,E,F,G,Dansk,test_0003\n");
+
+            // Files are mapped once they are unchanged since the previous poll, and hidden files are ignored
+            assertEquals(0, watcher.poll());
+            assertEquals(1, watcher.poll());
+            assertEquals(true, new File(inbox, Tv2InboxWatcher.DONE + "/delivery1.csv").isFile());
+            assertEquals(false, new File(inbox, "delivery1.csv").exists());
+            assertEquals(1, OUTPUTDIR.listFiles().length);
+            assertEquals(true, new File(rejectsDirectory, "delivery1.csv.rejects").isFile());
+
+            // A delivery written under a hidden name is mapped once renamed
+            new File(inbox, ".delivery2.csv").renameTo(new File(inbox, "delivery2.csv"));
+            assertEquals(0, watcher.poll());
+            assertEquals(1, watcher.poll());
+            assertEquals(2, OUTPUTDIR.listFiles().length);
+            assertEquals(false, new File(rejectsDirectory, "delivery2.csv.rejects").exists());
+            assertEquals(1, tv2PBCoreMapper.getMetrics().getFailures());
+            assertEquals(0, watcher.poll());
+
+            // A delivery whose changes cannot be saved is moved to failed, and the watcher keeps going
+            watcher.setOutputIndex(new OutputIndex(new File(inbox, "missing/index")));
+            writeCsv(new File(inbox, "delivery3.csv"), "1995-01,A,B,C,30,D,,E,F,G,Dansk,test_0004\n");
+            assertEquals(0, watcher.poll());
+            assertEquals(1, watcher.poll());
+            assertEquals(true, new File(inbox, Tv2InboxWatcher.FAILED + "/delivery3.csv").isFile());
+            watcher.setOutputIndex(null);
+            writeCsv(new File(inbox, "delivery4.csv"), "1995-01,A,B,C,30,D,,E,F,G,Dansk,test_0005\n");
+            assertEquals(0, watcher.poll());
+            assertEquals(1, watcher.poll());
+            assertEquals(true, new File(inbox, Tv2InboxWatcher.DONE + "/delivery4.csv").isFile());
+        } finally {
+            executorService.shutdownNow();
+            delete(inbox);
+            delete(rejectsDirectory);
+        }
+    }
+
+    private static void writeSchema(File file, String maxOccurs) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write("<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" elementFormDefault=\"qualified\""
+                                 + " targetNamespace=\"" + PBCoreTemplate.PBCORE_NAMESPACE + "\">"
+                                 + "<xs:element name=\"PBCoreDescriptionDocument\"><xs:complexType><xs:sequence>"
+                                 + "<xs:any processContents=\"skip\" maxOccurs=\"" + maxOccurs + "\"/>"
+                                 + "</xs:sequence></xs:complexType></xs:element></xs:schema>");
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void writeCsv(File file, String csvdata) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(csvdata);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static byte[] readEntry(ZipInputStream zipInputStream) throws IOException {
+        ByteArrayOutputStream entry = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = zipInputStream.read(buffer)) != -1) {
+            entry.write(buffer, 0, read);
+        }
+        return entry.toByteArray();
+    }
 }
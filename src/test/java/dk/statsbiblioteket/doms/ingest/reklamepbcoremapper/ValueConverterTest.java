@@ -0,0 +1,55 @@
+package dk.statsbiblioteket.doms.ingest.reklamepbcoremapper;
+
+import org.junit.Test;
+
+import java.util.TimeZone;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+/**
+ * Test value conversions.
+ */
+public class ValueConverterTest {
+    private final ValueConverter valueConverter = new ValueConverter(TimeZone.getTimeZone("Europe/Copenhagen"));
+
+    @Test
+    public void testConvertShortDate() {
+        assertEquals("1999-01-11+0100", valueConverter.convertShortDate("990111"));
+        assertEquals("2000-07-31+0200", valueConverter.convertShortDate("731"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConvertInvalidShortDate() {
+        valueConverter.convertShortDate("990231");
+    }
+
+    @Test
+    public void testConvertMonth() {
+        assertEquals("1995-01", valueConverter.convertMonth("1995-1"));
+    }
+
+    @Test
+    public void testConvertDate() {
+        assertEquals("1961-02-12+0100", valueConverter.convertDate(java.sql.Date.valueOf("1961-02-12")));
+    }
+
+    @Test
+    public void testConvertDuration() {
+        assertEquals("00:00:30", valueConverter.convertDuration(30));
+        assertEquals("01:01:01", valueConverter.convertDuration(3661));
+    }
+
+    @Test
+    public void testConvertExtension() {
+        assertEquals("censorcard: 1234", valueConverter.convertExtension("censorcard", 1234));
+        assertNull(valueConverter.convertExtension("censorcard", null));
+    }
+
+    @Test
+    public void testConvertFileNames() {
+        assertEquals("film%201%20a%20b.mpg", valueConverter.convertFileLocation("film+1 a b.mpg"));
+        assertEquals("film%201%20a%20b.xml", valueConverter.convertFileName("film+1 a b.mpg"));
+        assertEquals("k%C3%B8ber%F0%9F%98%80_x.-*", valueConverter.convertFileLocation("køber😀_x.-*"));
+    }
+}